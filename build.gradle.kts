@@ -1,5 +1,6 @@
 plugins {
     java
+    id("me.champeau.jmh") version "0.7.2"
 }
 
 repositories {
@@ -9,9 +10,29 @@ repositories {
 dependencies {
     implementation("org.xerial:sqlite-jdbc:3.46.1.0")
     implementation("org.slf4j:slf4j-simple:2.0.16")
+    testImplementation("org.junit.jupiter:junit-jupiter:5.10.3")
+    testRuntimeOnly("org.junit.platform:junit-platform-launcher:1.10.3")
 }
 
 java {
     sourceCompatibility = JavaVersion.VERSION_17
     targetCompatibility = JavaVersion.VERSION_21
 }
+
+// Tests live in src/test/java; run them with ./gradlew test
+tasks.test {
+    useJUnitPlatform()
+}
+
+// Benchmarks live in src/jmh/java; run them with ./gradlew jmh
+jmh {
+    jmhVersion.set("1.37")
+    benchmarkMode.set(listOf("thrpt"))
+    timeUnit.set("s")
+    // Reports the allocation rate next to the throughput
+    profilers.set(listOf("gc"))
+    fork.set(1)
+    warmupIterations.set(2)
+    iterations.set(3)
+    resultFormat.set("JSON")
+}
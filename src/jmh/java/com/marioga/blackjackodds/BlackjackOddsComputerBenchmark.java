@@ -0,0 +1,135 @@
+package com.marioga.blackjackodds;
+
+/**
+ * Benchmarks the expected return of each action for
+ * representative hands and deck counts. A new
+ * BlackjackOddsComputer is used on every invocation so that
+ * its memoized results do not carry over between calls.
+ * Splits are only measured on pairs. The stand-expectation
+ * cache is kept in a scratch database in a temporary directory,
+ * so the real cacheDB/stand_odds.db is never touched.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class BlackjackOddsComputerBenchmark {
+    private static final int SIZE = 10;
+
+    @Param({ "1", "2", "8" })
+    public int numDecks;
+
+    @Param({ "0", "5", "9" })
+    public int dealerCard;
+
+    private BlackjackTableRules mRules;
+    private int[] mDealerHand;
+    private int[] mWithdrawnCards;
+    private File mCacheDir;
+    private File mCacheFile;
+    private StandExpectationCache mCache;
+
+    @State(Scope.Benchmark)
+    public static class Hand {
+        // Pair of 8s, hard 16, soft 17 and hard 11
+        @Param({ "0,0,0,0,0,0,0,2,0,0", "0,0,0,0,0,1,0,0,0,1",
+                "1,0,0,0,0,1,0,0,0,0", "0,1,0,0,0,0,0,0,1,0" })
+        public String playerHand;
+
+        private int[] mPlayerHand;
+
+        @Setup
+        public void parseHand() {
+            mPlayerHand = parseCounts(playerHand);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Pair {
+        // Pair of aces, 8s and 10s
+        @Param({ "2,0,0,0,0,0,0,0,0,0", "0,0,0,0,0,0,0,2,0,0",
+                "0,0,0,0,0,0,0,0,0,2" })
+        public String pair;
+
+        private int[] mPlayerHand;
+
+        @Setup
+        public void parseHand() {
+            mPlayerHand = parseCounts(pair);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mCacheDir = Files.createTempDirectory("standCache").toFile();
+        mCacheFile = new File(mCacheDir, "stand_odds.db");
+        System.setProperty(StandExpectationCache.DB_FILE_PROPERTY,
+                mCacheFile.getPath());
+        mRules = new BlackjackTableRules(numDecks, true, true, false, 1.5f);
+        mDealerHand = new int[SIZE];
+        mDealerHand[dealerCard] = 1;
+        mWithdrawnCards = new int[SIZE];
+        mCache = new StandExpectationCache(mRules, mWithdrawnCards);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCacheFile.delete();
+        mCacheDir.delete();
+        System.clearProperty(StandExpectationCache.DB_FILE_PROPERTY);
+    }
+
+    private static int[] parseCounts(String hand) {
+        String[] counts = hand.split(",");
+        int[] playerHand = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            playerHand[i] = Integer.parseInt(counts[i]);
+        }
+        return playerHand;
+    }
+
+    private BlackjackOddsComputer newComputer(int[] playerHand) {
+        BlackjackOddsComputer boc = new BlackjackOddsComputer(mRules,
+                playerHand, mDealerHand, mWithdrawnCards);
+        boc.setCachedStandValues(mCache);
+        return boc;
+    }
+
+    @Benchmark
+    public float stand(Hand hand) {
+        return newComputer(hand.mPlayerHand).computeExpectationStand(true);
+    }
+
+    @Benchmark
+    public float hit(Hand hand) {
+        return newComputer(hand.mPlayerHand).computeExpectationHit(true);
+    }
+
+    @Benchmark
+    public float hitWithoutCache(Hand hand) {
+        return newComputer(hand.mPlayerHand).computeExpectationHit(false);
+    }
+
+    @Benchmark
+    public float doubleDown(Hand hand) {
+        return newComputer(hand.mPlayerHand).computeExpectationDouble(true);
+    }
+
+    @Benchmark
+    public float split(Pair pair) {
+        return newComputer(pair.mPlayerHand).computeExpectationSplit(true, 2);
+    }
+}
@@ -0,0 +1,73 @@
+package com.marioga.blackjackodds;
+
+/**
+ * Benchmarks writing a full odds database to a temporary file.
+ * The stand-expectation cache is built once per trial, into a
+ * scratch database in a temporary directory, so each invocation
+ * only loads it back; that load is measured along with the hit,
+ * double and split computations and the writes. The real
+ * cacheDB/stand_odds.db is never touched.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class BlackjackOddsDBWriterBenchmark {
+    private static final int SIZE = 10;
+
+    @Param({ "1", "8" })
+    public int numDecks;
+
+    private BlackjackTableRules mRules;
+    private File mCacheDir;
+    private File mCacheFile;
+    private File mOddsFile;
+
+    @Setup(Level.Trial)
+    public void buildCache() throws IOException {
+        mCacheDir = Files.createTempDirectory("standCache").toFile();
+        mCacheFile = new File(mCacheDir, "stand_odds.db");
+        System.setProperty(StandExpectationCache.DB_FILE_PROPERTY,
+                mCacheFile.getPath());
+        mRules = new BlackjackTableRules(numDecks, true, true, false, 1.5f);
+        new StandExpectationCache(mRules, new int[SIZE]);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteCache() {
+        mCacheFile.delete();
+        mCacheDir.delete();
+        System.clearProperty(StandExpectationCache.DB_FILE_PROPERTY);
+    }
+
+    @Setup(Level.Invocation)
+    public void createTempFile() throws IOException {
+        mOddsFile = File.createTempFile("odds", ".db");
+        // The writer refuses to overwrite an existing file
+        mOddsFile.delete();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteTempFile() {
+        mOddsFile.delete();
+    }
+
+    @Benchmark
+    public void saveOddsToDB() {
+        new BlackjackOddsDBWriter(mRules, new int[SIZE]).
+                saveOddsToDB(mOddsFile.getPath());
+    }
+}
@@ -0,0 +1,30 @@
+package com.marioga.blackjackodds;
+
+/**
+ * Benchmarks the enumeration of all player hands.
+ *
+ * @author marioga
+ *
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+@State(Scope.Benchmark)
+public class PlayerHandGeneratorBenchmark {
+    private static final int SIZE = 10;
+
+    @Param({ "1", "2", "8" })
+    public int numDecks;
+
+    @Benchmark
+    public void getHands(Blackhole blackhole) {
+        for (int[] playerHand : PlayerHandGenerator.getHands(numDecks,
+                new int[SIZE])) {
+            blackhole.consume(playerHand);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.marioga.blackjackodds;
+
+/**
+ * Benchmarks building a stand-expectation cache from scratch
+ * against loading it back from the database. The caches are kept
+ * in a scratch database in a temporary directory, so the cold
+ * builds never delete the real cacheDB/stand_odds.db.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+@State(Scope.Benchmark)
+public class StandExpectationCacheBenchmark {
+    private static final int SIZE = 10;
+
+    @Param({ "1", "8" })
+    public int numDecks;
+
+    private BlackjackTableRules mRules;
+    private File mCacheDir;
+    private File mCacheFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        mCacheDir = Files.createTempDirectory("standCache").toFile();
+        mCacheFile = new File(mCacheDir, "stand_odds.db");
+        System.setProperty(StandExpectationCache.DB_FILE_PROPERTY,
+                mCacheFile.getPath());
+        mRules = new BlackjackTableRules(numDecks, true, true, false, 1.5f);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mCacheFile.delete();
+        mCacheDir.delete();
+        System.clearProperty(StandExpectationCache.DB_FILE_PROPERTY);
+    }
+
+    @State(Scope.Benchmark)
+    public static class ColdCache {
+        // Only building uses threads
+        @Param({ "1", "4" })
+        public int parallelism;
+
+        @Setup(Level.Invocation)
+        public void deleteCache(StandExpectationCacheBenchmark benchmark) {
+            benchmark.mCacheFile.delete();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class WarmCache {
+        @Setup(Level.Trial)
+        public void buildCache(StandExpectationCacheBenchmark benchmark) {
+            new StandExpectationCache(benchmark.mRules, new int[SIZE]);
+        }
+    }
+
+    @Benchmark
+    public StandExpectationCache coldBuild(ColdCache cold) {
+        return new StandExpectationCache(mRules, new int[SIZE],
+                cold.parallelism);
+    }
+
+    @Benchmark
+    public StandExpectationCache load(WarmCache warm) {
+        return new StandExpectationCache(mRules, new int[SIZE]);
+    }
+}
@@ -0,0 +1,81 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class writes (hand code, odds) rows through a single
+ * reusable prepared statement, sending them to the database
+ * in JDBC batches. The statement must take the hand code as
+ * its first parameter and the odds as its second one.
+ *
+ * @author marioga
+ *
+ */
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+public class BatchedOddsWriter implements AutoCloseable {
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final PreparedStatement mStatement;
+    private final int mBatchSize;
+    private int mPendingRows;
+    private long mRowsWritten;
+
+    public BatchedOddsWriter(Connection connection, String sql,
+            int batchSize) throws SQLException {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Batch size must be positive: " + batchSize);
+        }
+        mStatement = connection.prepareStatement(sql);
+        mBatchSize = batchSize;
+    }
+
+    public long getRowsWritten() {
+        return mRowsWritten;
+    }
+
+    public void write(long id, float oddsValue) throws SQLException {
+        mStatement.setLong(1, id);
+        mStatement.setFloat(2, oddsValue);
+        mStatement.addBatch();
+        if (++mPendingRows == mBatchSize) {
+            flush();
+        }
+    }
+
+    public void flush() throws SQLException {
+        if (mPendingRows > 0) {
+            long start = System.nanoTime();
+            mStatement.executeBatch();
+            EngineMetrics.getInstance().recordRowsWritten(mPendingRows,
+                    System.nanoTime() - start);
+            mRowsWritten += mPendingRows;
+            mPendingRows = 0;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            mStatement.close();
+        }
+    }
+
+    /**
+     * Returns the schema of a table of odds keyed
+     * on the HandEncoder code.
+     */
+    public static String createTableSql(String tableName) {
+        return "CREATE TABLE " + tableName
+                + " (ID INTEGER PRIMARY KEY NOT NULL, Odds REAL)"
+                + " WITHOUT ROWID";
+    }
+
+    public static String insertSql(String tableName) {
+        return "INSERT INTO " + tableName + " (ID, Odds) VALUES (?, ?)";
+    }
+}
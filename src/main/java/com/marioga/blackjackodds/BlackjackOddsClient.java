@@ -21,14 +21,17 @@ public class BlackjackOddsClient {
         // Compute stand expectation
         System.out.println("Stand expectation: "
                 + boc.computeExpectationStand(true));
-        StandExpectationCache sec = new StandExpectationCache(
-                rules, withdrawnCards);
-        boc.setCachedStandValues(sec);
-        System.out.println("Hit expectation: "
-                + boc.computeExpectationHit(true));
-        System.out.println("Double expectation: "
-                + boc.computeExpectationDouble(true));
-        System.out.println("Split expectation: "
-                + boc.computeExpectationSplit(true, 2));
+        // Only the stand values reachable from this hand are computed;
+        // closing the cache keeps the new ones for the next run
+        try (StandExpectationCache sec = StandExpectationCache.createLazy(
+                rules, withdrawnCards, true)) {
+            boc.setCachedStandValues(sec);
+            System.out.println("Hit expectation: "
+                    + boc.computeExpectationHit(true));
+            System.out.println("Double expectation: "
+                    + boc.computeExpectationDouble(true));
+            System.out.println("Split expectation: "
+                    + boc.computeExpectationSplit(true, 2));
+        }
     }
 }
@@ -2,10 +2,15 @@ package com.marioga.blackjackodds;
 
 import static java.lang.Math.max;
 
+import java.util.Arrays;
+
 /**
  * This class represents a blackjack game situation. 
  * It computes the expected return on the different
  * actions in the game, given the current status.
+ * Instances keep mutable state and memoized results, so each
+ * one must be used by one thread at a time; BlackjackOddsEngine
+ * offers a thread-safe interface on top of this class.
  * 
  * @author marioga
  *
@@ -14,21 +19,46 @@ import static java.lang.Math.max;
 public class BlackjackOddsComputer {
     private static final int[] OCURRENCES = 
         { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
     private static final int DECK_SIZE = 52;
     private static final int SIZE = 10;
     
-    private static StandExpectationCache sCachedStandValues;
+    private StandExpectationCache mCachedStandValues;
     
     public void setCachedStandValues (StandExpectationCache sec) {
         // Must have same rules and withdrawn cards
-        sCachedStandValues = sec;
+        mCachedStandValues = sec;
+        Arrays.fill(mCachedHitValues, Float.NaN);
+        Arrays.fill(mSplitValues, null);
     }
     
     private final BlackjackTableRules mRules;
+    private final DealerOutcomeEngine mDealerOutcomes;
     private int[] mPlayerHand;
     private int[] mDealerHand;
     private int[] mWithdrawnCards;
     
+    /*
+     * Transposition tables of the (not probability-scaled) hit
+     * expectations, indexed by HandIndexer cell, NaN if unknown.
+     * The shoe of a hit state is the withdrawn cards plus both
+     * hands, so the cell identifies it as long as the withdrawn
+     * cards do not change.
+     */
+    private final HandIndexer mIndexer;
+    private final float[] mCachedHitValues;
+    private final float[] mUncachedHitValues;
+    
+    // Recursion nodes and stand-cache lookups since the
+    // last report to EngineMetrics
+    private long mNodesVisited;
+    private long mStandCacheHits;
+    private long mStandCacheMisses;
+    
+    private boolean mExactSplitAces;
+    // Exact split aces expectations by dealer card, NaN if unknown
+    private final float[] mExactSplitAcesValues = new float[SIZE];
+    
     public int[] getPlayerHand() {
         return mPlayerHand;
     }
@@ -51,15 +81,45 @@ public class BlackjackOddsComputer {
 
     public void setWithdrawnCards(int[] withdrawnCards) {
         mWithdrawnCards = withdrawnCards;
+        Arrays.fill(mCachedHitValues, Float.NaN);
+        Arrays.fill(mUncachedHitValues, Float.NaN);
+        Arrays.fill(mExactSplitAcesValues, Float.NaN);
+        Arrays.fill(mSplitValues, null);
+    }
+    
+    public boolean isExactSplitAces() {
+        return mExactSplitAces;
+    }
+    
+    /**
+     * This method chooses how a pair of aces that cannot be
+     * resplit is evaluated. The default approximation plays each
+     * ace as if the card drawn to the other one was still in the
+     * shoe; the exact mode takes both drawn cards out of the shoe.
+     * The mode starts as chosen by the rules (see
+     * BlackjackTableRules.isExactSplitAces).
+     * @param exactSplitAces use the exact evaluation?
+     */
+    
+    public void setExactSplitAces(boolean exactSplitAces) {
+        mExactSplitAces = exactSplitAces;
     }
     
     public BlackjackOddsComputer(BlackjackTableRules rules) {
-        mRules = rules;       
+        mRules = rules;
+        mExactSplitAces = rules.isExactSplitAces();
+        mDealerOutcomes = new DealerOutcomeEngine(rules);
+        mIndexer = new HandIndexer(rules.getNumDecks());
+        mCachedHitValues = new float[mIndexer.getNumCells()];
+        mUncachedHitValues = new float[mIndexer.getNumCells()];
+        Arrays.fill(mCachedHitValues, Float.NaN);
+        Arrays.fill(mUncachedHitValues, Float.NaN);
+        Arrays.fill(mExactSplitAcesValues, Float.NaN);
     }
     
     public BlackjackOddsComputer(BlackjackTableRules rules,
             int[] playerHand, int[] dealerHand, int[] withdrawnCards) {
-        mRules = rules;
+        this(rules);
         mPlayerHand = playerHand;
         mDealerHand = dealerHand;
         mWithdrawnCards = withdrawnCards;        
@@ -73,124 +133,24 @@ public class BlackjackOddsComputer {
      */
     
     public float computeExpectationStand(boolean afterPeek) {
-        return expectationStand(mPlayerHand, mDealerHand,
+        float expReturn = expectationStand(mPlayerHand, mDealerHand,
                 mWithdrawnCards, afterPeek, 1);
+        reportMetrics(StrategyTable.ACTION_STAND);
+        return expReturn;
     }
     
     private float expectationStand(int[] playerHand,
             int[] dealerHand, int[] withdrawnCards,
             boolean afterPeek, float prob) {
-        //This variable will represent the expected return
-        float expReturn = 0;
-        /*
-         * This vector will contain the probabilities for
-         * the rank of the next card in the shoe 
-         */
-        float[] probabilities;
-        // This variable keeps track of all cards not in the shoe
+        mNodesVisited++;
+        // The dealer outcome only depends on the cards out of the shoe
         int[] cardsOutSoFar = new int[SIZE];
         for (int i = 0; i < SIZE; i++) {
-            cardsOutSoFar[i] = playerHand[i] + dealerHand[i]
-                    + withdrawnCards[i];
-        }
-        
-        if (!afterPeek) { // Hole card could be anything
-            probabilities = computeStandProbabilities(mRules.getNumDecks(),
-                    cardsOutSoFar, -1);
-        } else { // If the dealer has an ace or 10 showing,
-                 // we know the dealer does not have blackjack
-            if (dealerHand[9] == 1 && 
-                    Helper.numberOfCards(dealerHand) == 1) {
-                // Dealer hand is a 10
-                probabilities = computeStandProbabilities(mRules.getNumDecks(),
-                        cardsOutSoFar, 0);
-            } else if (dealerHand[0] == 1 && 
-                    Helper.numberOfCards(dealerHand) == 1) {
-                // Dealer hand is an Ace
-                probabilities = computeStandProbabilities(mRules.getNumDecks(),
-                        cardsOutSoFar, 9);
-            } else { 
-                // Dealer never peeked; hole card is arbitrary
-                // or dealer has at least two cards
-                probabilities = computeStandProbabilities(mRules.getNumDecks(),
-                        cardsOutSoFar, -1);
-            }
-        }
-
-        if (Helper.valueHand(dealerHand) <= 16
-                || (Helper.valueHand(dealerHand) == 17
-                && Helper.isSoft(dealerHand) 
-                && !mRules.isDealerStandsSoft17())) {
-            // Dealer hits
-            for (int i = 0; i < SIZE; i++) {
-                if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOutSoFar[i] + 1) {
-                    int[] newDealerHand = dealerHand.clone();
-                    newDealerHand[i] += 1;
-                    if ((i == 0 && dealerHand[9] == 1 && Helper.numberOfCards(dealerHand) == 1
-                            && afterPeek) || (i == 9 && dealerHand[0] == 1
-                            && Helper.numberOfCards(dealerHand) == 1 && afterPeek)) {
-                        continue;
-                    }
-                    if (Helper.valueHand(newDealerHand) <= 21) { // Not Busted
-                        expReturn += expectationStand(playerHand,
-                                newDealerHand, withdrawnCards, afterPeek,
-                                prob * probabilities[i]);
-                    } else {
-                        if (Helper.isBlackJack(playerHand)) {
-                            expReturn += mRules.getBlackjackPays() * prob
-                                    * probabilities[i];
-                        } else {
-                            expReturn += prob * probabilities[i];
-                        }
-                    }
-                }
-
-            }
-        } else { // Dealer stands
-            if (Helper.isBlackJack(playerHand)
-                    && !Helper.isBlackJack(dealerHand)) {
-                expReturn = mRules.getBlackjackPays() * prob;
-            } else {
-                if (Helper.valueHand(dealerHand)
-                        < Helper.valueHand(playerHand)) {
-                    expReturn = prob;
-                } else if (Helper.valueHand(dealerHand)
-                        > Helper.valueHand(playerHand)
-                        || (Helper.isBlackJack(dealerHand)
-                                && !Helper.isBlackJack(playerHand))) {
-                    expReturn = -prob;
-                }
-            }
-        }
-        return expReturn;
-    }
-    
-    private static float[] computeStandProbabilities(int numDecks,
-            int[] cardsOut, int holeCardIsNotThis) {
-        float[] result = new float[SIZE];
-        // Number of cards left
-        final int TOTAL = numDecks * DECK_SIZE
-                - Helper.numberOfCards(cardsOut);
-        // Number of cards of type i left
-        int total_i;
-        if (holeCardIsNotThis != -1) { // We know the hole card
-                                       // is not equal to this value
-            // Number of cards of type holeCardIsNotThis left
-            int total_hole = OCURRENCES[holeCardIsNotThis] * numDecks
-                    - cardsOut[holeCardIsNotThis];
-            for (int i = 0; i < SIZE; i++) {
-                if (i == holeCardIsNotThis) continue;
-                total_i = OCURRENCES[i] * numDecks - cardsOut[i];
-                result[i] = (float) (total_i)
-                        / (TOTAL - total_hole);
-            }
-        } else { // Next card is arbitrary
-            for (int i = 0; i < SIZE; i++) {
-                total_i = OCURRENCES[i] * numDecks - cardsOut[i];
-                result[i] = (float) (total_i) / TOTAL;
-            }
+            cardsOutSoFar[i] = playerHand[i] + withdrawnCards[i];
         }
-        return result;
+        float[] outcomes = mDealerOutcomes.getDistribution(dealerHand,
+                cardsOutSoFar, afterPeek);
+        return prob * mDealerOutcomes.expectationStand(playerHand, outcomes);
     }
     
     /**
@@ -201,93 +161,120 @@ public class BlackjackOddsComputer {
      */
     
     public float computeExpectationHit(boolean usingCachedValues) {
-        return expectationHit(mPlayerHand, mDealerHand,
-                mWithdrawnCards, usingCachedValues, 1);
+        float expReturn = expectationHit(new CardComposition(mPlayerHand),
+                getDealerCard(), cardsOut(mPlayerHand),
+                usingCachedValues);
+        reportMetrics(StrategyTable.ACTION_HIT);
+        return expReturn;
     }
 
-    private float expectationHit(int[] playerHand,
-            int[] dealerHand, int[] withdrawnCards,
-            boolean usingCachedValues, float prob) {
-        float expReturn = 0;
-        float[] probabilities;
-        int[] cardsOutSoFar = new int[SIZE];
-        for (int i = 0; i < SIZE; i++) {
-            cardsOutSoFar[i] = playerHand[i] + dealerHand[i]
-                    + withdrawnCards[i];
-        }
-        if (dealerHand[9] == 1 && Helper.numberOfCards(dealerHand) == 1) {
-            // Dealer hand is a 10
-            probabilities = computeHitProbabilities(mRules.getNumDecks(), cardsOutSoFar, 0);
-        } else if (dealerHand[0] == 1 && Helper.numberOfCards(dealerHand) == 1) { 
-            // Dealer hand is an Ace
-            probabilities = computeHitProbabilities(mRules.getNumDecks(), cardsOutSoFar, 9);
-        } else {
-            probabilities = computeHitProbabilities(mRules.getNumDecks(), cardsOutSoFar, -1);
+    private float expectationHit(CardComposition playerHand,
+            int dealerCard, CardComposition cardsOut,
+            boolean usingCachedValues) {
+        // The same hand is reached through many drawing orders
+        float[] hitValues = usingCachedValues
+                ? mCachedHitValues : mUncachedHitValues;
+        int index = mIndexer.getIndex(playerHand, dealerCard);
+        if (!Float.isNaN(hitValues[index])) {
+            return hitValues[index];
         }
-
+        mNodesVisited++;
+        float expReturn = 0;
         for (int i = 0; i < SIZE; i++) {
-            if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOutSoFar[i] + 1) {
-                int[] newPlayerHand = playerHand.clone();
-                newPlayerHand[i] += 1;
-                int value = Helper.valueHand(newPlayerHand);
+            if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOut.count(i) + 1) {
+                float probability = hitProbability(i, dealerCard, cardsOut);
+                playerHand.add(i);
+                cardsOut.add(i);
+                int value = playerHand.value();
                 if (value <= 11) {// Not Busted
-                    float hitExp = expectationHit(newPlayerHand,
-                            dealerHand, withdrawnCards,
-                            usingCachedValues, prob * probabilities[i]);
-                    expReturn += hitExp;
+                    float hitExp = expectationHit(playerHand,
+                            dealerCard, cardsOut, usingCachedValues);
+                    expReturn += probability * hitExp;
                 } else if (value <= 21) {
-                    float hitExp = expectationHit(newPlayerHand,
-                            dealerHand, withdrawnCards,
-                            usingCachedValues,
-                            prob * probabilities[i]);
-                    float standExp = 0;
-                    if (usingCachedValues) {
-                         standExp = sCachedStandValues.
-                                getCachedValue(newPlayerHand, dealerHand);
-                        standExp *= prob * probabilities[i];
-                    } else {
-                        standExp = expectationStand(newPlayerHand,
-                                dealerHand, withdrawnCards, true,
-                                prob * probabilities[i]);
-                    }
-                    expReturn += max(hitExp, standExp);
+                    float hitExp = expectationHit(playerHand,
+                            dealerCard, cardsOut, usingCachedValues);
+                    float standExp = expectationStand(playerHand,
+                            dealerCard, cardsOut, usingCachedValues);
+                    expReturn += probability * max(hitExp, standExp);
                 } else {
-                    expReturn -= prob * probabilities[i];
+                    expReturn -= probability;
                 }
+                playerHand.remove(i);
+                cardsOut.remove(i);
             }
         }
+        hitValues[index] = expReturn;
         return expReturn;
     }
     
-    private static float[] computeHitProbabilities(int numDecks,
-            int[] cardsOut, int holeCardIsNotThis) {
-        float[] result = new float[SIZE];
+    private float expectationStand(CardComposition playerHand,
+            int dealerCard, CardComposition cardsOut,
+            boolean usingCachedValues) {
+        mNodesVisited++;
+        if (usingCachedValues) {
+            float expReturn = mCachedStandValues.getCachedValue(playerHand,
+                    dealerCard);
+            if (Float.isNaN(expReturn)) {
+                mStandCacheMisses++;
+            } else {
+                mStandCacheHits++;
+            }
+            return expReturn;
+        }
+        float[] outcomes = mDealerOutcomes.getDistribution(dealerCard,
+                cardsOut, true);
+        return mDealerOutcomes.expectationStand(playerHand, outcomes);
+    }
+    
+    /*
+     * Probability that the next card has the given rank,
+     * knowing that the dealer does not have blackjack
+     */
+    private float hitProbability(int rank, int dealerCard,
+            CardComposition cardsOut) {
+        return hitProbability(mRules.getNumDecks(), rank, dealerCard,
+                cardsOut);
+    }
+    
+    static float hitProbability(int numDecks, int rank, int dealerCard,
+            CardComposition cardsOut) {
         // Number of cards left
-        final int TOTAL = numDecks * DECK_SIZE
-                - Helper.numberOfCards(cardsOut);
-        // Number of cards of type i left
-        int total_i;
+        final int TOTAL = numDecks * DECK_SIZE - cardsOut.getNumCards();
+        // Number of cards of type rank left
+        int total_i = OCURRENCES[rank] * numDecks - cardsOut.count(rank);
+        int holeCardIsNotThis = -1;
+        if (dealerCard == 9) {
+            // Dealer hand is a 10
+            holeCardIsNotThis = 0;
+        } else if (dealerCard == 0) {
+            // Dealer hand is an Ace
+            holeCardIsNotThis = 9;
+        }
         if (holeCardIsNotThis != -1) {
             // Number of cards of type holeCardIsNotThis left
             int total_hole = OCURRENCES[holeCardIsNotThis] * numDecks
-                    - cardsOut[holeCardIsNotThis];
-            for (int i = 0; i < SIZE; i++) {
-                // P(Next card = i | Hole card is not holeCardIsNotThis) 
-                if (i == holeCardIsNotThis) {
-                    result[i] = (float) (total_hole) / (TOTAL - 1);
-                } else {
-                    total_i = OCURRENCES[i] * numDecks - cardsOut[i];
-                    result[i] = (float) (total_i) * (TOTAL - total_hole - 1)
-                            / (TOTAL - 1) / (TOTAL - total_hole);
-                }
-            }
-        } else {
-            for (int i = 0; i < SIZE; i++) {
-                total_i = OCURRENCES[i] * numDecks - cardsOut[i];
-                result[i] = (float) (total_i) / TOTAL;
+                    - cardsOut.count(holeCardIsNotThis);
+            // P(Next card = rank | Hole card is not holeCardIsNotThis) 
+            if (rank == holeCardIsNotThis) {
+                return (float) (total_hole) / (TOTAL - 1);
+            } else {
+                return (float) (total_i) * (TOTAL - total_hole - 1)
+                        / (TOTAL - 1) / (TOTAL - total_hole);
             }
         }
-        return result;
+        return (float) (total_i) / TOTAL;
+    }
+    
+    private int getDealerCard() {
+        return HandEncoder.getDealerCard(mDealerHand);
+    }
+    
+    private CardComposition cardsOut(int[] playerHand) {
+        CardComposition cardsOut = new CardComposition(mWithdrawnCards);
+        for (int i = 0; i < SIZE; i++) {
+            cardsOut.add(i, playerHand[i] + mDealerHand[i]);
+        }
+        return cardsOut;
     }
     
     /**
@@ -298,60 +285,52 @@ public class BlackjackOddsComputer {
      */
     
     public float computeExpectationDouble(boolean usingCachedValues) {
-        return expectationDouble(mPlayerHand, mDealerHand,
-                mWithdrawnCards, usingCachedValues);
+        float expReturn = expectationDouble(
+                new CardComposition(mPlayerHand), getDealerCard(),
+                cardsOut(mPlayerHand), usingCachedValues);
+        reportMetrics(StrategyTable.ACTION_DOUBLE);
+        return expReturn;
     }
 
-    private float expectationDouble(int[] playerHand,
-            int[] dealerHand, int[] withdrawnCards,
+    private float expectationDouble(CardComposition playerHand,
+            int dealerCard, CardComposition cardsOut,
             boolean usingCachedValues) {
+        mNodesVisited++;
         float expReturn = 0;
-        float[] probabilities;
-        int[] cardsOutSoFar = new int[SIZE];
-        for (int i = 0; i < SIZE; i++) {
-            cardsOutSoFar[i] = playerHand[i] + dealerHand[i]
-                    + withdrawnCards[i];
-        }
-        if (dealerHand[9] == 1 &&
-                Helper.numberOfCards(dealerHand) == 1) {
-            // Dealer hand is a 10
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, 0);
-        } else if (dealerHand[0] == 1 &&
-                Helper.numberOfCards(dealerHand) == 1) {
-            // Dealer hand is an Ace
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, 9);
-        } else {
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, -1);
-        }
-
         for (int i = 0; i < SIZE; i++) {
-            if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOutSoFar[i] + 1) {
-                int[] newPlayerHand = playerHand.clone();
-                newPlayerHand[i] += 1;
-                if (Helper.valueHand(newPlayerHand) <= 21) {
+            if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOut.count(i) + 1) {
+                float probability = hitProbability(i, dealerCard, cardsOut);
+                playerHand.add(i);
+                cardsOut.add(i);
+                if (playerHand.value() <= 21) {
                     // Not Busted
-                    float standExp = 0;
-                    if (usingCachedValues) {
-                        standExp = sCachedStandValues.
-                                getCachedValue(newPlayerHand, dealerHand);
-                        standExp *= probabilities[i];
-                    } else {
-                        standExp = expectationStand(newPlayerHand,
-                                dealerHand, withdrawnCards, true,
-                                probabilities[i]);
-                    }
+                    float standExp = expectationStand(playerHand,
+                            dealerCard, cardsOut, usingCachedValues);
+                    standExp *= probability;
                     expReturn += 2 * standExp;
                 } else {
-                    expReturn -= 2 * probabilities[i];
+                    expReturn -= 2 * probability;
                 }
+                playerHand.remove(i);
+                cardsOut.remove(i);
             }
         }
         return expReturn;
     }
     
+    /**
+     * This method computes an approximate expected return for 
+     * the player after (s)he chooses to split, resplitting up to
+     * the number of hands allowed by the rules.
+     * @param usingCachedValues do we use cached stand values?
+     * @return expected return upon choosing to split
+     */
+    
+    public float computeExpectationSplit(boolean usingCachedValues) {
+        return computeExpectationSplit(usingCachedValues,
+                mRules.getMaxSplitHands() - 2);
+    }
+    
     /**
      * This method computes an approximate expected return for 
      * the player after (s)he chooses to split. A full-composition
@@ -363,288 +342,260 @@ public class BlackjackOddsComputer {
     
     public float computeExpectationSplit(boolean usingCachedValues,
             int splitsLeft) {
+        if (splitsLeft < 0) {
+            throw new IllegalArgumentException(
+                    "Splits left cannot be negative: " + splitsLeft);
+        }
+        float expReturn;
         if (mPlayerHand[0] == 2 && !mRules.isAceReSplits()) {
             // Pair of Aces that cannot be further split
-            return expectationSplitCacher(usingCachedValues, 0);
+            if (mExactSplitAces) {
+                expReturn = exactSplitAcesExpectation();
+            } else {
+                expReturn = expectationSplitCacher(usingCachedValues, 0);
+            }
         } else {
-            return expectationSplitCacher(usingCachedValues, splitsLeft);
+            expReturn = expectationSplitCacher(usingCachedValues, splitsLeft);
         }
+        reportMetrics(StrategyTable.ACTION_SPLIT);
+        return expReturn;
     }
     
-    private float[] mTempCachedSplits;
-
-    private float expectationSplitCacher(boolean usingCachedValues,
-            int splitsLeft) {
-        mTempCachedSplits = new float[splitsLeft + 1];
-        for (int i = 0; i < splitsLeft + 1; i++) {
-            mTempCachedSplits[i] = expectationSplit(usingCachedValues, i);
+    /*
+     * Fills in the unknown cached hit expectations against a
+     * dealer card from values indexed by hand (NaN if unknown),
+     * computed for the same shoe and stand-expectation cache
+     */
+    void seedCachedHitValues(float[] hitValues, int dealerCard) {
+        for (int hand = 0; hand < hitValues.length; hand++) {
+            int index = HandIndexer.getCellIndex(hand, dealerCard);
+            if (!Float.isNaN(hitValues[hand])
+                    && Float.isNaN(mCachedHitValues[index])) {
+                mCachedHitValues[index] = hitValues[hand];
+            }
         }
-        return mTempCachedSplits[splitsLeft];
     }
     
-    private float expectationSplit(boolean usingCachedValues,
-            int splitsLeft) {
-        // Here we just want to approximate.
-        // Cannot be done full composition dependent.
-        boolean splitAces = false;
-        int[] playerHand1 = mPlayerHand.clone();
-        int[] playerHand2 = new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
-        int pair = -1;
+    private void reportMetrics(int action) {
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        metrics.recordNodes(action, mNodesVisited);
+        if (mStandCacheHits + mStandCacheMisses > 0) {
+            metrics.recordStandCache(mStandCacheHits, mStandCacheMisses);
+        }
+        mNodesVisited = 0;
+        mStandCacheHits = 0;
+        mStandCacheMisses = 0;
+    }
+
+    /*
+     * Each split ace gets one card and stands. The dealer outcome
+     * depends on both drawn cards, so it is computed once for each
+     * (unordered) pair of drawn cards, and both hands are settled
+     * against it. Drawing x then y is as likely as drawing y then x.
+     */
+    private float exactSplitAcesExpectation() {
+        int dealerCard = getDealerCard();
+        if (!Float.isNaN(mExactSplitAcesValues[dealerCard])) {
+            return mExactSplitAcesValues[dealerCard];
+        }
+        CardComposition cardsOut = cardsOut(mPlayerHand);
+        float expReturn = 0;
         for (int i = 0; i < SIZE; i++) {
-            if (mPlayerHand[i] == 2) {
-                pair = i;
-                if (pair == 0) {
-                    splitAces = true;
+            if (OCURRENCES[i] * mRules.getNumDecks() >= cardsOut.count(i) + 1) {
+                float probability1 = hitProbability(i, dealerCard, cardsOut);
+                cardsOut.add(i);
+                for (int j = i; j < SIZE; j++) {
+                    if (OCURRENCES[j] * mRules.getNumDecks()
+                            >= cardsOut.count(j) + 1) {
+                        float probability2 = hitProbability(j, dealerCard,
+                                cardsOut);
+                        cardsOut.add(j);
+                        mNodesVisited++;
+                        float[] outcomes = mDealerOutcomes.getDistribution(
+                                dealerCard, cardsOut, true);
+                        float exp = splitAceStand(i, outcomes)
+                                + splitAceStand(j, outcomes);
+                        if (i != j) {
+                            exp *= 2;
+                        }
+                        expReturn += probability1 * probability2 * exp;
+                        cardsOut.remove(j);
+                    }
                 }
-                playerHand1[pair]--;
-                playerHand2[pair]++;
-                break;
+                cardsOut.remove(i);
             }
         }
-        float expReturn = 0;
-        float[] probabilities;
-        int[] cardsOutSoFar = new int[SIZE];
+        mExactSplitAcesValues[dealerCard] = expReturn;
+        return expReturn;
+    }
+    
+    private float splitAceStand(int drawnCard, float[] outcomes) {
+        // A + 10 after a split is a plain 21
+        int value = drawnCard == 0 ? 12 : VALUES[drawnCard] + 11;
+        return mDealerOutcomes.expectationStand(value, false, outcomes);
+    }
+    
+    /*
+     * Split expectations by number of splits left, indexed by
+     * 2 * (SIZE * pair + dealer card) + (using cached values ? 1 : 0).
+     * The shoe of a split state is the withdrawn cards plus the
+     * pair and the dealer card, so the index identifies it as long
+     * as the withdrawn cards do not change.
+     */
+    private final float[][] mSplitValues = new float[2 * SIZE * SIZE][];
+    // Expectations after normal play of the pair card plus each card
+    private final float[] mNormalPlayValues = new float[SIZE];
+    // Cards out of the shoe other than the split hand being played
+    private final CardComposition mSplitCardsOut = new CardComposition();
+    private final CardComposition mNormalPlayCardsOut =
+            new CardComposition();
+
+    private float expectationSplitCacher(boolean usingCachedValues,
+            int splitsLeft) {
+        int pair = 0;
+        while (mPlayerHand[pair] != 2) {
+            pair++;
+        }
+        int dealerCard = getDealerCard();
+        int key = 2 * (SIZE * pair + dealerCard)
+                + (usingCachedValues ? 1 : 0);
+        float[] splitValues = mSplitValues[key];
+        if (splitValues != null && splitValues.length > splitsLeft) {
+            return splitValues[splitsLeft];
+        }
+        
+        mSplitCardsOut.set(mWithdrawnCards);
+        mSplitCardsOut.add(dealerCard);
+        CardComposition cardsOutSoFar = cardsOut(mPlayerHand);
+        CardComposition playerHand = new CardComposition();
         for (int i = 0; i < SIZE; i++) {
-            cardsOutSoFar[i] = mPlayerHand[i] + mDealerHand[i]
-                    + mWithdrawnCards[i];
+            if (OCURRENCES[i] * mRules.getNumDecks()
+                    >= cardsOutSoFar.count(i) + 1) {
+                playerHand.clear();
+                playerHand.add(pair);
+                playerHand.add(i);
+                mNormalPlayValues[i] = expectationAfterNormalPlay(
+                        playerHand, dealerCard, pair == 0,
+                        usingCachedValues);
+            }
         }
-        if (mDealerHand[9] == 1
-                && Helper.numberOfCards(mDealerHand) == 1) {
-            // Dealer hand is a 10
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, 0);
-        } else if (mDealerHand[0] == 1
-                && Helper.numberOfCards(mDealerHand) == 1) {
-            // Dealer hand is an Ace
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, 9);
-        } else {
-            probabilities = computeHitProbabilities(
-                    mRules.getNumDecks(), cardsOutSoFar, -1);
+        // Each value only depends on the ones with fewer splits left
+        float[] newValues = new float[splitsLeft + 1];
+        int known = 0;
+        if (splitValues != null) {
+            known = splitValues.length;
+            System.arraycopy(splitValues, 0, newValues, 0, known);
+        }
+        for (int k = known; k <= splitsLeft; k++) {
+            newValues[k] = expectationSplit(newValues, pair, dealerCard,
+                    cardsOutSoFar, k);
         }
+        mSplitValues[key] = newValues;
+        return newValues[splitsLeft];
+    }
+    
+    private float expectationSplit(float[] splitValues, int pair,
+            int dealerCard, CardComposition cardsOutSoFar, int splitsLeft) {
+        // Here we just want to approximate.
+        // Cannot be done full composition dependent.
+        float expReturn = 0;
         for (int i = 0; i < SIZE; i++) {
             if (OCURRENCES[i] * mRules.getNumDecks()
-                    >= cardsOutSoFar[i] + 1) {
-                int[] newPlayerHand1 = playerHand1.clone();
-                newPlayerHand1[i]++;
-                int[] cardsOutSoFar2 = cardsOutSoFar.clone();
-                cardsOutSoFar2[i]++;
-                float[] probabilities2;
-                if (mDealerHand[9] == 1
-                        && Helper.numberOfCards(mDealerHand) == 1) {
-                    // Dealer hand is a 10
-                    probabilities2 = computeHitProbabilities(
-                            mRules.getNumDecks(), cardsOutSoFar2, 0);
-                } else if (mDealerHand[0] == 1
-                        && Helper.numberOfCards(mDealerHand) == 1) {
-                    // Dealer hand is an Ace
-                    probabilities2 = computeHitProbabilities(
-                            mRules.getNumDecks(), cardsOutSoFar2, 9);
-                } else {
-                    probabilities2 = computeHitProbabilities(
-                            mRules.getNumDecks(), cardsOutSoFar2, -1);
-                }
+                    >= cardsOutSoFar.count(i) + 1) {
+                float probability1 = hitProbability(i, dealerCard,
+                        cardsOutSoFar);
+                cardsOutSoFar.add(i);
                 for (int j = 0; j < SIZE; j++) {
                     if (OCURRENCES[j] * mRules.getNumDecks()
-                            >= cardsOutSoFar2[j] + 1) {
-                        int[] newPlayerHand2 = playerHand2.clone();
-                        newPlayerHand2[j] += 1;
+                            >= cardsOutSoFar.count(j) + 1) {
+                        float probability2 = hitProbability(j, dealerCard,
+                                cardsOutSoFar);
+                        mNodesVisited++;
                         float prob;
-                        if (i != pair && j != pair) {
-                            prob = expectationPairDistinct(newPlayerHand1,
-                                    newPlayerHand2, mDealerHand,
-                                    mWithdrawnCards, splitAces,
-                                    usingCachedValues);
+                        if (splitsLeft == 0 || (i != pair && j != pair)) {
+                            prob = expectationPairDistinct(i, j);
+                        } else if (i == pair && j == pair) {
+                            prob = expectationPairTwoEqual(splitValues,
+                                    pair, splitsLeft);
+                        } else if (i == pair) {
+                            prob = expectationPairOneEqual(splitValues,
+                                    i, j, splitsLeft);
                         } else {
-                            if (splitsLeft == 2) {
-                                if (i == pair && j == pair) {
-                                    prob = expectationPairTwoEqual(
-                                            newPlayerHand1, newPlayerHand2, 
-                                            mDealerHand, mWithdrawnCards,
-                                            splitAces, usingCachedValues,
-                                            splitsLeft);
-                                } else if (i == pair && j != pair) {
-                                    prob = expectationPairOneEqual(
-                                            newPlayerHand1, newPlayerHand2, 
-                                            mDealerHand, mWithdrawnCards,
-                                            splitAces, usingCachedValues,
-                                            splitsLeft);
-                                } else {
-                                    prob = expectationPairOneEqual(
-                                            newPlayerHand2, newPlayerHand1, 
-                                            mDealerHand, mWithdrawnCards,
-                                            splitAces, usingCachedValues,
-                                            splitsLeft);
-                                }
-                            } else if (splitsLeft == 1) {
-                                if (i == pair) {
-                                    prob = expectationPairOneEqual(
-                                            newPlayerHand1, newPlayerHand2, 
-                                            mDealerHand, mWithdrawnCards,
-                                            splitAces, usingCachedValues,
-                                            splitsLeft);
-                                } else {
-                                    prob = expectationPairOneEqual(
-                                            newPlayerHand2, newPlayerHand1, 
-                                            mDealerHand, mWithdrawnCards,
-                                            splitAces, usingCachedValues,
-                                            splitsLeft);
-                                }
-                            } else {
-                                prob = expectationPairDistinct(newPlayerHand1,
-                                        newPlayerHand2, mDealerHand,
-                                        mWithdrawnCards, splitAces,
-                                        usingCachedValues);
-                            }
+                            prob = expectationPairOneEqual(splitValues,
+                                    j, i, splitsLeft);
                         }
                         expReturn += 
-                                probabilities[i] * probabilities2[j] * prob;
+                                probability1 * probability2 * prob;
                     }
                 }
+                cardsOutSoFar.remove(i);
             }
         }
         return expReturn;
     }
     
-    private float expectationPairTwoEqual(int[] playerHand1, 
-            int[] playerHand2, int[] dealerHand,
-            int[] withdrawnCards, boolean splitAces,
-            boolean usingCachedValues, int splitsLeft) {
-        // Expectation if do not further split any pair
-        float firstPossibility = expectationPairDistinct(playerHand1,
-                playerHand2, dealerHand, withdrawnCards,
-                splitAces, usingCachedValues);
-        // Expectation if we split exactly one pair;
-        // it is irrelevant which one as they are both identical
-        float secondPossibility = mTempCachedSplits[splitsLeft - 1]
-                + expectationAfterNormalPlay(playerHand2, dealerHand,
-                        withdrawnCards, splitAces, usingCachedValues);
-        // Expectation after further splitting both pairs
-        float thirdPossibility = 2 * mTempCachedSplits[splitsLeft - 2];
-        return max(firstPossibility, max(secondPossibility, thirdPossibility));
-    }
-    
-    private float expectationPairOneEqual(int[] playerHand1, 
-            int[] playerHand2, int[] dealerHand,
-            int[] withdrawnCards, boolean splitAces,
-            boolean usingCachedValues, int splitsLeft) {
+    private float expectationPairTwoEqual(float[] splitValues, int pair,
+            int splitsLeft) {
+        // Expectation if we do not further split any pair, or if we
+        // split exactly one pair; it is irrelevant which one as they
+        // are both identical
+        float expReturn = expectationPairOneEqual(splitValues, pair, pair,
+                splitsLeft);
+        // Expectation after further splitting both pairs, for every
+        // way of sharing the remaining splits between them
+        for (int k = 0; k <= splitsLeft - 2; k++) {
+            expReturn = max(expReturn,
+                    splitValues[k] + splitValues[splitsLeft - 2 - k]);
+        }
+        return expReturn;
+    }
+    
+    private float expectationPairOneEqual(float[] splitValues, int newPair,
+            int other, int splitsLeft) {
         // Expectation if we do not further split the new pair
-        float firstPossibility = expectationPairDistinct(playerHand1,
-                playerHand2, dealerHand, withdrawnCards,
-                splitAces, usingCachedValues);
+        float firstPossibility = expectationPairDistinct(newPair, other);
         // Expectation if we further split the new pair
-        float secondPossibility = mTempCachedSplits[splitsLeft - 1]
-                + expectationAfterNormalPlay(playerHand2, dealerHand,
-                        withdrawnCards, splitAces, usingCachedValues);
+        float secondPossibility = splitValues[splitsLeft - 1]
+                + mNormalPlayValues[other];
         return max(firstPossibility, secondPossibility);
-
     }
     
-    private float expectationPairDistinct(int[] playerHand1, 
-            int[] playerHand2, int[] dealerHand,
-            int[] withdrawnCards, boolean splitAces,
-            boolean usingCachedValues) {
+    private float expectationPairDistinct(int card1, int card2) {
         // Here we are assuming independence of the returns
         // of both hands, which is not true in practice.
         // This method provides a good approximation.
         // The exact computation of composition-dependent
         // expectation is not feasible
-        float exp1 = expectationAfterNormalPlay(playerHand1,
-                dealerHand, withdrawnCards, splitAces, usingCachedValues);
-        float exp2 = expectationAfterNormalPlay(playerHand2,
-                dealerHand, withdrawnCards, splitAces, usingCachedValues);
-        return exp1 + exp2;
+        return mNormalPlayValues[card1] + mNormalPlayValues[card2];
     }
     
-    private float expectationAfterNormalPlay(int[] playerHand,
-            int[] dealerHand, int[] withdrawnCards,
-            boolean splitAces, boolean usingCachedValues) {
-        float expStand = 0;
-        if (usingCachedValues) {
-            expStand = sCachedStandValues.
-                    getCachedValue(playerHand, dealerHand);
-        } else {
-            expStand = expectationStand(playerHand,
-                    dealerHand, withdrawnCards, true, 1);
+    private float expectationAfterNormalPlay(CardComposition playerHand,
+            int dealerCard, boolean splitAces, boolean usingCachedValues) {
+        // Each hand is played as if the other one was still in the shoe
+        CardComposition cardsOut = mNormalPlayCardsOut;
+        cardsOut.set(mSplitCardsOut);
+        for (int i = 0; i < SIZE; i++) {
+            cardsOut.add(i, playerHand.count(i));
         }
+        float expStand = expectationStand(playerHand, dealerCard,
+                cardsOut, usingCachedValues);
         if (splitAces) {
             // We follow the common rule that split Aces
             // only get an extra card
-            if (playerHand[SIZE - 1] == 1) {
+            if (playerHand.count(SIZE - 1) == 1) {
                 // In this case, A + 10 is not Blackjack
                 expStand /= mRules.getBlackjackPays();
             }
             return expStand;
         } else {
-            float expHit = expectationHit(playerHand, dealerHand, 
-                    withdrawnCards, usingCachedValues, 1);
+            float expHit = expectationHit(playerHand, dealerCard, 
+                    cardsOut, usingCachedValues);
             float expDouble = -10;
             if (mRules.isDoubleAfterSplit()) {
-                expDouble = expectationDouble(playerHand, dealerHand,
-                        withdrawnCards, usingCachedValues);
+                expDouble = expectationDouble(playerHand, dealerCard,
+                        cardsOut, usingCachedValues);
             }
             return max(expStand, max(expHit, expDouble));
         }
     }
-    
-//    public float exactAcesSplitExpectation() {
-//        int[] fixedHand = new int[] {1, 0, 0, 0, 0, 0, 0, 0, 0, 0};
-//        int[] dealerHand = new int[] {0, 0, 0, 0, 0, 0, 1, 0, 0, 0};
-//        float expReturn = 0;
-//        float[] probabilities;
-//        int[] cardsOutSoFar = new int[SIZE];
-//        for (int i = 0; i < SIZE; i++) {
-//            cardsOutSoFar[i] = 2 * fixedHand[i] + dealerHand[i];
-//        }
-//        if (dealerHand[9] == 1) {
-//            // Dealer hand is a 10
-//            probabilities = computeHitProbabilities(
-//                    mRules.getNumDecks(), cardsOutSoFar, 0);
-//        } else if (dealerHand[0] == 1) {
-//            // Dealer hand is an Ace
-//            probabilities = computeHitProbabilities(
-//                    mRules.getNumDecks(), cardsOutSoFar, 9);
-//        } else {
-//            probabilities = computeHitProbabilities(
-//                    mRules.getNumDecks(), cardsOutSoFar, -1);
-//        }
-//        for (int i = 0; i < SIZE; i++) {
-//            int[] newPlayerHand1 = fixedHand.clone();
-//            newPlayerHand1[i]++;
-//            int[] cardsOutSoFar2 = cardsOutSoFar.clone();
-//            cardsOutSoFar2[i]++;
-//            float[] probabilities2;
-//            if (dealerHand[9] == 1) {
-//                // Dealer hand is a 10
-//                probabilities2 = computeHitProbabilities(mRules.getNumDecks(),
-//                        cardsOutSoFar2, 0);
-//            } else if (dealerHand[0] == 1) {
-//                // Dealer hand is an Ace
-//                probabilities2 = computeHitProbabilities(mRules.getNumDecks(),
-//                        cardsOutSoFar2, 9);
-//            } else {
-//                probabilities2 = computeHitProbabilities(mRules.getNumDecks(),
-//                        cardsOutSoFar2, -1);
-//            }
-//            for (int j = 0; j < SIZE; j++) {
-//                if (j == 0 && i == 0 && dealerHand[0] == 1
-//                      && mRules.getNumDecks() == 1) continue;
-//                int[] newPlayerHand2 = fixedHand.clone();
-//                newPlayerHand2[j]++;
-//                float expStand1 = expectationStand(newPlayerHand1,
-//                        dealerHand, newPlayerHand2, true, 1);
-//                float expStand2 = expectationStand(newPlayerHand2,
-//                        dealerHand, newPlayerHand1, true, 1);
-//                if (newPlayerHand1[SIZE - 1] == 1) {
-//                    expStand1 /= mRules.getBlackjackPays();
-//                }
-//                if (newPlayerHand2[SIZE - 1] == 1) {
-//                    expStand2 /= mRules.getBlackjackPays();
-//                }
-//                expReturn += probabilities[i]
-//                        * probabilities2[j] * (expStand1 + expStand2);
-//            }   
-//        }
-//        return expReturn;
-//    }
 }
@@ -5,16 +5,26 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 public class BlackjackOddsDBWriter {
-    private static final int[] OCURRENCES = 
-        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
-    private static final int SIZE = 10;
-    
     /**
      * This class writes the expected values
      * into a database, given a choice of rules
-     * and withdrawn cards.
+     * and withdrawn cards. The odds are computed
+     * by worker threads, which hand every cell to
+     * a single writer thread through a bounded
+     * queue, so the database is written while the
+     * odds are computed and a slow disk holds back
+     * the workers instead of filling memory.
      *
      * @author marioga
      *
@@ -22,72 +32,183 @@ public class BlackjackOddsDBWriter {
     
     private final String[] TABLE_NAMES = 
             new String[] {"Stand", "Hit", "Double", "Split"};
+    // Cells the workers may be ahead of the writer thread
+    private static final int QUEUE_CAPACITY = 4096;
+    // Cells written between commits
+    private static final int CELLS_PER_TRANSACTION = 50000;
+    // How often a blocked worker checks that the writer is alive
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+    private static final OddsRow END_OF_ROWS = new OddsRow(-1, null);
 
     private BlackjackTableRules mRules;
     private int[] mWithdrawnCards;
+    private int mBatchSize;
     
     private Connection mDBConnection;
     private Statement mStatement;
+    private BatchedOddsWriter[] mWriters;
     
     public BlackjackOddsDBWriter(BlackjackTableRules rules, int[] withdrawnCards) {
+        this(rules, withdrawnCards, BatchedOddsWriter.DEFAULT_BATCH_SIZE);
+    }
+    
+    public BlackjackOddsDBWriter(BlackjackTableRules rules, int[] withdrawnCards,
+            int batchSize) {
         mRules = rules;
         mWithdrawnCards = withdrawnCards;
+        mBatchSize = batchSize;
     }
     
     public void saveOddsToDB (String fileName) {
+        saveOddsToDB(fileName, 1);
+    }
+    
+    /**
+     * This method computes the odds of every hand with a
+     * StrategyTableGenerator on the given number of threads
+     * and writes them into the database. The file is deleted
+     * if the odds cannot all be written.
+     * @param fileName database file, which must not exist
+     * @param parallelism number of worker threads
+     */
+    
+    public void saveOddsToDB (String fileName, int parallelism) {
         if (!initializeDB(fileName)) {
             // File already exists
             return;
         }
-        createTables();
-        
-        // Temporary BlackjackComputer to find stand exps
-        BlackjackOddsComputer boc = new BlackjackOddsComputer(mRules);
-        boc.setWithdrawnCards(mWithdrawnCards.clone());
+        boolean saved = false;
+        try {
+            createTables();
+            writeOdds(parallelism);
+            commitDB();
+            saved = true;
+        } finally {
+            if (saved) {
+                closeDB();
+            } else {
+                // Otherwise the next call would skip the partial file
+                discardDB(fileName);
+            }
+        }
+    }
+    
+    private void writeOdds(int parallelism) {
         StandExpectationCache sec = new StandExpectationCache(
-                mRules, mWithdrawnCards);
-        boc.setCachedStandValues(sec);
-        Iterable<int[]> playerHands = PlayerHandGenerator.
-                getHands(mRules.getNumDecks(), mWithdrawnCards);
-        for (int[] playerHand : playerHands) {
-            for (int i = 0; i < SIZE; i++) {
-                if (mRules.getNumDecks() * OCURRENCES[i]
-                        >= playerHand[i]
-                                + mWithdrawnCards[i] + 1) {
-                    int[] dealerHand = new int[SIZE];
-                    dealerHand[i]++;
-                    boc.setPlayerHand(playerHand);
-                    boc.setDealerHand(dealerHand);
-                    long code = HandEncoder.encodeToHashKey(playerHand, i);
-                    writeToTable(TABLE_NAMES[0], code,
-                            sec.getCachedValue(playerHand, dealerHand));
-                    if (Helper.valueHand(playerHand) < 21) {
-                        float hitValue = boc.computeExpectationHit(true);
-                        writeToTable(TABLE_NAMES[1], code, hitValue);
-                        if (Helper.numberOfCards(playerHand) == 2) {
-                            float doubleValue = boc.
-                                    computeExpectationDouble(true);
-                            writeToTable(TABLE_NAMES[2], code, doubleValue);
-                            if (Helper.isPair(playerHand)) {
-                                float splitValue = boc.
-                                        computeExpectationSplit(true, 2);
-                                writeToTable(TABLE_NAMES[3], code, splitValue);
-                            }
+                mRules, mWithdrawnCards, parallelism, mBatchSize);
+        HandIndexer indexer = new HandIndexer(mRules.getNumDecks());
+        BlockingQueue<OddsRow> queue =
+                new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+        ExecutorService writerThread = Executors.newSingleThreadExecutor(
+                r -> new Thread(r, "odds-db-writer"));
+        Future<?> writer = writerThread.submit(() -> writeRows(queue));
+        writerThread.shutdown();
+        try {
+            new StrategyTableGenerator(mRules, mWithdrawnCards, sec,
+                    parallelism).generate((cell, odds) -> {
+                        long code = HandEncoder.encodeToHashKey(
+                                indexer.getPlayerHand(cell),
+                                HandIndexer.getDealerCard(cell));
+                        OddsRow row = new OddsRow(code, new float[] {
+                                odds.getStand(), odds.getHit(),
+                                odds.getDouble(), odds.getSplit() });
+                        if (!enqueue(queue, row, writer)) {
+                            throw new IllegalStateException(
+                                    "The database writer stopped");
+                        }
+                    });
+        } finally {
+            // The writer stops even if the workers failed, and
+            // its own failure takes precedence over theirs
+            enqueue(queue, END_OF_ROWS, writer);
+            awaitWriter(writer);
+        }
+    }
+    
+    /*
+     * Blocks while the writer thread is behind; returns false,
+     * without enqueueing the row, once the writer has stopped
+     */
+    private static boolean enqueue(BlockingQueue<OddsRow> queue,
+            OddsRow row, Future<?> writer) {
+        try {
+            while (!queue.offer(row, OFFER_TIMEOUT_MILLIS,
+                    TimeUnit.MILLISECONDS)) {
+                if (writer.isDone()) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static void awaitWriter(Future<?> writer) {
+        try {
+            writer.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /*
+     * Runs on the writer thread until the end of the rows,
+     * committing every CELLS_PER_TRANSACTION cells
+     */
+    private void writeRows(BlockingQueue<OddsRow> queue) {
+        List<OddsRow> rows = new ArrayList<>(QUEUE_CAPACITY);
+        int uncommittedCells = 0;
+        try {
+            while (true) {
+                rows.add(queue.take());
+                queue.drainTo(rows);
+                for (OddsRow row : rows) {
+                    if (row == END_OF_ROWS) {
+                        return;
+                    }
+                    for (int i = 0; i < TABLE_NAMES.length; i++) {
+                        if (!Float.isNaN(row.mValues[i])) {
+                            writeToTable(i, row.mCode, row.mValues[i]);
                         }
                     }
+                    uncommittedCells++;
+                }
+                rows.clear();
+                if (uncommittedCells >= CELLS_PER_TRANSACTION) {
+                    commit();
+                    uncommittedCells = 0;
                 }
             }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
-        closeDB();
     }
     
-    private void writeToTable(String tableName, long id, float oddsValue) {
+    private void writeToTable(int table, long id, float oddsValue) {
         try {
-            mStatement = mDBConnection.createStatement();
-            String sql = "INSERT INTO " + tableName + "(ID, Odds) VALUES (" +
-                    + id + ", " + oddsValue + ");";
-            mStatement.executeUpdate(sql);
-            mStatement.close();
+            mWriters[table].write(id, oddsValue);
+        } catch (SQLException e) {
+            handleDBException(e);
+        }
+    }
+    
+    private void commit() {
+        try {
+            for (BatchedOddsWriter writer : mWriters) {
+                writer.flush();
+            }
+            mDBConnection.commit();
         } catch (SQLException e) {
             handleDBException(e);
         }
@@ -96,12 +217,13 @@ public class BlackjackOddsDBWriter {
     private void createTables() {
         try {
             mStatement = mDBConnection.createStatement();
-            String sql;
+            mWriters = new BatchedOddsWriter[TABLE_NAMES.length];
             for (int i = 0; i < TABLE_NAMES.length; i++) {
-                sql = "CREATE TABLE " 
-                        + TABLE_NAMES[i] 
-                        + " (ID INT PRIMARY KEY NOT NULL, Odds REAL)";
-                mStatement.executeUpdate(sql);
+                mStatement.executeUpdate(BatchedOddsWriter.
+                        createTableSql(TABLE_NAMES[i]));
+                mWriters[i] = new BatchedOddsWriter(mDBConnection,
+                        BatchedOddsWriter.insertSql(TABLE_NAMES[i]),
+                        mBatchSize);
             }
             mStatement.close();
         } catch (SQLException e) {
@@ -126,17 +248,53 @@ public class BlackjackOddsDBWriter {
         }
     }
     
-    private void closeDB() {
+    private void commitDB() {
         try {
+            for (BatchedOddsWriter writer : mWriters) {
+                writer.close();
+            }
             mDBConnection.commit();
+        } catch (SQLException e) {
+            handleDBException(e);
+        }
+    }
+    
+    private void closeDB() {
+        try {
             mDBConnection.close();
         } catch (SQLException e) {
             handleDBException(e);
         }
     }
     
+    /*
+     * Closes the connection without committing and deletes the
+     * file; a failure to close would only hide the original one
+     */
+    private void discardDB(String fileName) {
+        try {
+            mDBConnection.close();
+        } catch (SQLException e) {
+            // The file is deleted anyway
+        }
+        new File(fileName).delete();
+    }
+    
     private void handleDBException(Exception e) {
         System.err.println(e.getClass().getName() + ": " + e.getMessage());
         System.exit(0);
     }
+    
+    /*
+     * Odds of one cell, keyed on its HandEncoder code
+     */
+    private static final class OddsRow {
+        private final long mCode;
+        private final float[] mValues;
+        
+        OddsRow(long code, float[] values) {
+            mCode = code;
+            mValues = values;
+        }
+    }
 }
@@ -0,0 +1,454 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class answers expected-return queries for one choice
+ * of rules, withdrawn cards and stand-expectation cache.
+ * It is immutable and its methods may be called from many
+ * threads at once. Each query borrows a BlackjackOddsComputer
+ * from a pool, so the results memoized by a computer are
+ * reused by the queries that follow on it. Bulk callers should
+ * use evaluateBatch instead, which answers many hands at once and
+ * computes every hit expectation they depend on a single time.
+ * 
+ * @author marioga
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+public final class BlackjackOddsEngine implements OddsEvaluator {
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+
+    private final BlackjackTableRules mRules;
+    private final int[] mWithdrawnCards;
+    private final StandExpectationCache mCache;
+    private final HandIndexer mIndexer;
+    private final Queue<BlackjackOddsComputer> mComputers =
+            new ConcurrentLinkedQueue<>();
+
+    public BlackjackOddsEngine(BlackjackTableRules rules,
+            int[] withdrawnCards, StandExpectationCache cache) {
+        if (!rules.getStandFingerprint().equals(
+                cache.getRules().getStandFingerprint())
+                || !Arrays.equals(withdrawnCards, cache.getWithdrawnCards())) {
+            throw new IllegalArgumentException(
+                    "Cache was built for other rules or withdrawn cards");
+        }
+        mRules = rules;
+        mWithdrawnCards = withdrawnCards.clone();
+        mCache = cache;
+        mIndexer = new HandIndexer(rules.getNumDecks());
+    }
+
+    @Override
+    public BlackjackTableRules getRules() {
+        return mRules;
+    }
+
+    @Override
+    public int[] getWithdrawnCards() {
+        return mWithdrawnCards.clone();
+    }
+
+    public StandExpectationCache getCache() {
+        return mCache;
+    }
+
+    /**
+     * This method computes the expected return of every action
+     * available to the player hand.
+     * @param playerHand player hand
+     * @param dealerUpcard rank of the dealer upcard
+     * @return expected returns, NaN for unavailable actions
+     */
+
+    @Override
+    public HandOdds evaluate(int[] playerHand, int dealerUpcard) {
+        long start = System.nanoTime();
+        BlackjackOddsComputer boc = borrow(playerHand, dealerUpcard);
+        try {
+            float stand = expectationStand(playerHand, dealerUpcard);
+            float hit = Float.NaN;
+            float doubleDown = Float.NaN;
+            float split = Float.NaN;
+            if (Helper.valueHand(playerHand) < 21) {
+                hit = boc.computeExpectationHit(true);
+                if (Helper.numberOfCards(playerHand) == 2) {
+                    doubleDown = boc.computeExpectationDouble(true);
+                    if (Helper.isPair(playerHand)) {
+                        split = boc.computeExpectationSplit(true);
+                    }
+                }
+            }
+            return new HandOdds(stand, hit, doubleDown, split);
+        } finally {
+            mComputers.offer(boc);
+            EngineMetrics.getInstance().recordQuery(
+                    System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * This method computes the expected returns of many player
+     * hands against one upcard, with the same results as
+     * evaluate, computing every hit expectation they depend on
+     * a single time (see Batch).
+     * @param playerHands player hands
+     * @param dealerUpcard rank of the dealer upcard
+     * @return expected returns of each hand, in the order of the
+     * list; null for the hands that do not fit in the shoe
+     */
+
+    @Override
+    public HandOdds[] evaluateBatch(List<int[]> playerHands,
+            int dealerUpcard) {
+        return new Batch(playerHands).evaluate(dealerUpcard);
+    }
+
+    /**
+     * Same as above, for several upcards. The hands the player
+     * hands can draw to are only worked out once for all of them.
+     * @return matrix of expected returns, indexed by upcard (in
+     * the order of the array) and then by hand
+     */
+
+    @Override
+    public HandOdds[][] evaluateBatch(List<int[]> playerHands,
+            int[] dealerUpcards) {
+        Batch batch = new Batch(playerHands);
+        HandOdds[][] odds = new HandOdds[dealerUpcards.length][];
+        for (int j = 0; j < dealerUpcards.length; j++) {
+            odds[j] = batch.evaluate(dealerUpcards[j]);
+        }
+        return odds;
+    }
+
+    public float expectationStand(int[] playerHand, int dealerUpcard) {
+        float stand = mCache.getCachedValue(playerHand, dealerUpcard);
+        boolean hit = !Float.isNaN(stand);
+        EngineMetrics metrics = EngineMetrics.getInstance();
+        metrics.recordNodes(StrategyTable.ACTION_STAND, 1);
+        metrics.recordStandCache(hit ? 1 : 0, hit ? 0 : 1);
+        return stand;
+    }
+
+    public float expectationHit(int[] playerHand, int dealerUpcard) {
+        BlackjackOddsComputer boc = borrow(playerHand, dealerUpcard);
+        try {
+            return boc.computeExpectationHit(true);
+        } finally {
+            mComputers.offer(boc);
+        }
+    }
+
+    public float expectationDouble(int[] playerHand, int dealerUpcard) {
+        BlackjackOddsComputer boc = borrow(playerHand, dealerUpcard);
+        try {
+            return boc.computeExpectationDouble(true);
+        } finally {
+            mComputers.offer(boc);
+        }
+    }
+
+    public float expectationSplit(int[] playerHand, int dealerUpcard) {
+        BlackjackOddsComputer boc = borrow(playerHand, dealerUpcard);
+        try {
+            return boc.computeExpectationSplit(true);
+        } finally {
+            mComputers.offer(boc);
+        }
+    }
+
+    public float expectationSplit(int[] playerHand, int dealerUpcard,
+            int splitsLeft) {
+        BlackjackOddsComputer boc = borrow(playerHand, dealerUpcard);
+        try {
+            return boc.computeExpectationSplit(true, splitsLeft);
+        } finally {
+            mComputers.offer(boc);
+        }
+    }
+
+    private BlackjackOddsComputer borrow(int[] playerHand,
+            int dealerUpcard) {
+        BlackjackOddsComputer boc = mComputers.poll();
+        if (boc == null) {
+            boc = new BlackjackOddsComputer(mRules);
+            boc.setWithdrawnCards(mWithdrawnCards);
+            boc.setCachedStandValues(mCache);
+        }
+        int[] dealerHand = new int[SIZE];
+        dealerHand[dealerUpcard] = 1;
+        // The computer only reads the hands, but callers may not
+        // expect them to be kept, so it gets its own copies
+        boc.setPlayerHand(playerHand.clone());
+        boc.setDealerHand(dealerHand);
+        return boc;
+    }
+
+    /*
+     * A set of player hands and every hand they can draw to
+     * without busting, grouped by number of cards. Hit
+     * expectations are computed bottom-up over those hands, from
+     * the ones with the most cards, so the hands one card away
+     * from a hand are known before the hand itself. The links
+     * between hands are worked out once, and do not depend on
+     * the upcard, so each upcard only costs the sums of its
+     * expectations. Splits are left to a pooled computer, which
+     * is given the hit expectations first.
+     */
+    private final class Batch {
+        private final List<int[]> mPlayerHands;
+        // Hands in the order they are found, by number of cards
+        private final List<int[]> mHands = new ArrayList<>();
+        private final int[] mHandIndexes;
+        // Number of hands with fewer cards than each number of cards
+        private final int[] mFirstHands;
+        // Index of each hand plus each rank, -1 if busted or
+        // not in the shoe
+        private final int[] mNextHands;
+        private final CardComposition mHand = new CardComposition();
+        private final CardComposition mCardsOut = new CardComposition();
+        private long mHitNodes;
+        private long mDoubleNodes;
+        private long mStandCacheHits;
+        private long mStandCacheMisses;
+
+        Batch(List<int[]> playerHands) {
+            mPlayerHands = playerHands;
+            int numDecks = mRules.getNumDecks();
+            // Hands of each number of cards, breadth first
+            List<List<int[]>> handsByNumCards = new ArrayList<>();
+            boolean[] found = new boolean[mIndexer.getNumHands()];
+            for (int[] playerHand : playerHands) {
+                // Any upcard will do, so the hand is checked without one
+                if (Helper.valueHand(playerHand) < 21 && Helper.fitsInShoe(
+                        numDecks, mWithdrawnCards, playerHand, -1)) {
+                    addHand(handsByNumCards, found,
+                            mIndexer.getIndex(playerHand), playerHand);
+                }
+            }
+            for (int n = 0; n < handsByNumCards.size(); n++) {
+                for (int[] hand : handsByNumCards.get(n)) {
+                    mHand.set(hand);
+                    for (int i = 0; i < SIZE; i++) {
+                        if (OCURRENCES[i] * numDecks >= hand[i]
+                                + mWithdrawnCards[i] + 1
+                                && mHand.getHardSum() + i + 1 <= 21) {
+                            mHand.add(i);
+                            addHand(handsByNumCards, found,
+                                    mIndexer.getIndex(mHand.getCounts()),
+                                    mHand.getCounts());
+                            mHand.remove(i);
+                        }
+                    }
+                }
+            }
+            mFirstHands = new int[handsByNumCards.size() + 1];
+            for (int n = 0; n < handsByNumCards.size(); n++) {
+                mHands.addAll(handsByNumCards.get(n));
+                mFirstHands[n + 1] = mHands.size();
+            }
+            mHandIndexes = new int[mHands.size()];
+            mNextHands = new int[SIZE * mHands.size()];
+            for (int k = 0; k < mHands.size(); k++) {
+                int[] hand = mHands.get(k);
+                mHandIndexes[k] = mIndexer.getIndex(hand);
+                mHand.set(hand);
+                for (int i = 0; i < SIZE; i++) {
+                    int next = -1;
+                    if (OCURRENCES[i] * numDecks >= hand[i]
+                            + mWithdrawnCards[i] + 1
+                            && mHand.getHardSum() + i + 1 <= 21) {
+                        mHand.add(i);
+                        next = mIndexer.getIndex(mHand.getCounts());
+                        mHand.remove(i);
+                    }
+                    mNextHands[SIZE * k + i] = next;
+                }
+            }
+        }
+
+        private void addHand(List<List<int[]>> handsByNumCards,
+                boolean[] found, int index, int[] hand) {
+            if (found[index]) {
+                return;
+            }
+            found[index] = true;
+            int numCards = Helper.numberOfCards(hand);
+            while (handsByNumCards.size() <= numCards) {
+                handsByNumCards.add(new ArrayList<>());
+            }
+            handsByNumCards.get(numCards).add(hand.clone());
+        }
+
+        HandOdds[] evaluate(int dealerCard) {
+            // Stand and hit expectations by hand index, NaN if not
+            // needed; every hand is read by up to ten others, so its
+            // stand expectation is only looked up once in the cache
+            float[] standValues = new float[mIndexer.getNumHands()];
+            float[] hitValues = new float[mIndexer.getNumHands()];
+            Arrays.fill(hitValues, Float.NaN);
+            // A hand that does not fit in the shoe with this upcard
+            // is never drawn to from one that does, so it is skipped
+            boolean[] fits = new boolean[mHands.size()];
+            for (int k = 0; k < mHands.size(); k++) {
+                fits[k] = Helper.fitsInShoe(mRules.getNumDecks(),
+                        mWithdrawnCards, mHands.get(k), dealerCard);
+                if (fits[k]) {
+                    standValues[mHandIndexes[k]] = standValue(
+                            mHandIndexes[k], dealerCard);
+                }
+            }
+            for (int n = mFirstHands.length - 2; n >= 0; n--) {
+                for (int k = mFirstHands[n]; k < mFirstHands[n + 1]; k++) {
+                    if (fits[k]) {
+                        hitValues[mHandIndexes[k]] = expectationHit(k,
+                                dealerCard, standValues, hitValues);
+                    }
+                }
+            }
+            HandOdds[] odds = new HandOdds[mPlayerHands.size()];
+            BlackjackOddsComputer boc = null;
+            try {
+                for (int i = 0; i < odds.length; i++) {
+                    int[] playerHand = mPlayerHands.get(i);
+                    if (!Helper.fitsInShoe(mRules.getNumDecks(),
+                            mWithdrawnCards, playerHand, dealerCard)) {
+                        continue;
+                    }
+                    int index = mIndexer.getIndex(playerHand);
+                    float stand = standValue(index, dealerCard);
+                    float hit = Float.NaN;
+                    float doubleDown = Float.NaN;
+                    float split = Float.NaN;
+                    if (Helper.valueHand(playerHand) < 21) {
+                        hit = hitValues[index];
+                        if (Helper.numberOfCards(playerHand) == 2) {
+                            doubleDown = expectationDouble(playerHand,
+                                    dealerCard);
+                            if (Helper.isPair(playerHand)) {
+                                if (boc == null) {
+                                    boc = borrow(playerHand, dealerCard);
+                                    boc.seedCachedHitValues(hitValues,
+                                            dealerCard);
+                                } else {
+                                    boc.setPlayerHand(playerHand.clone());
+                                }
+                                split = boc.computeExpectationSplit(true);
+                            }
+                        }
+                    }
+                    odds[i] = new HandOdds(stand, hit, doubleDown, split);
+                }
+            } finally {
+                if (boc != null) {
+                    mComputers.offer(boc);
+                }
+                reportMetrics();
+            }
+            return odds;
+        }
+
+        /*
+         * Same sums, in the same order, as the recursion of
+         * BlackjackOddsComputer, so the results are identical
+         */
+        private float expectationHit(int k, int dealerCard,
+                float[] standValues, float[] hitValues) {
+            mHitNodes++;
+            setCardsOut(mHands.get(k), dealerCard);
+            float expReturn = 0;
+            for (int i = 0; i < SIZE; i++) {
+                if (canDraw(i)) {
+                    float probability = BlackjackOddsComputer.hitProbability(
+                            mRules.getNumDecks(), i, dealerCard, mCardsOut);
+                    int next = mNextHands[SIZE * k + i];
+                    if (next == -1) {
+                        expReturn -= probability;
+                        continue;
+                    }
+                    mHand.add(i);
+                    int value = mHand.value();
+                    mHand.remove(i);
+                    if (value <= 11) {
+                        expReturn += probability * hitValues[next];
+                    } else {
+                        expReturn += probability * Math.max(hitValues[next],
+                                standValues[next]);
+                    }
+                }
+            }
+            return expReturn;
+        }
+
+        private float expectationDouble(int[] playerHand, int dealerCard) {
+            mDoubleNodes++;
+            setCardsOut(playerHand, dealerCard);
+            float expReturn = 0;
+            for (int i = 0; i < SIZE; i++) {
+                if (canDraw(i)) {
+                    float probability = BlackjackOddsComputer.hitProbability(
+                            mRules.getNumDecks(), i, dealerCard, mCardsOut);
+                    if (mHand.getHardSum() + i + 1 <= 21) {
+                        mHand.add(i);
+                        float standExp = standValue(
+                                mIndexer.getIndex(mHand.getCounts()),
+                                dealerCard);
+                        mHand.remove(i);
+                        standExp *= probability;
+                        expReturn += 2 * standExp;
+                    } else {
+                        expReturn -= 2 * probability;
+                    }
+                }
+            }
+            return expReturn;
+        }
+
+        // Leaves the hand in mHand and the cards out in mCardsOut
+        private void setCardsOut(int[] playerHand, int dealerCard) {
+            mHand.set(playerHand);
+            mCardsOut.set(mWithdrawnCards);
+            mCardsOut.add(dealerCard);
+            for (int i = 0; i < SIZE; i++) {
+                mCardsOut.add(i, playerHand[i]);
+            }
+        }
+
+        private boolean canDraw(int rank) {
+            return OCURRENCES[rank] * mRules.getNumDecks()
+                    >= mCardsOut.count(rank) + 1;
+        }
+
+        private float standValue(int handIndex, int dealerCard) {
+            float stand = mCache.getCachedValue(
+                    HandIndexer.getCellIndex(handIndex, dealerCard));
+            if (Float.isNaN(stand)) {
+                mStandCacheMisses++;
+            } else {
+                mStandCacheHits++;
+            }
+            return stand;
+        }
+
+        private void reportMetrics() {
+            EngineMetrics metrics = EngineMetrics.getInstance();
+            metrics.recordNodes(StrategyTable.ACTION_STAND,
+                    mStandCacheHits + mStandCacheMisses);
+            metrics.recordNodes(StrategyTable.ACTION_HIT, mHitNodes);
+            metrics.recordNodes(StrategyTable.ACTION_DOUBLE, mDoubleNodes);
+            metrics.recordStandCache(mStandCacheHits, mStandCacheMisses);
+            mHitNodes = 0;
+            mDoubleNodes = 0;
+            mStandCacheHits = 0;
+            mStandCacheMisses = 0;
+        }
+    }
+}
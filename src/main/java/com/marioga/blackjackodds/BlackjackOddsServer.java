@@ -0,0 +1,520 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class serves expected-return queries over HTTP on the
+ * loopback interface, so that the caches and engines stay warm
+ * across queries. The stand caches of the (rules, withdrawn cards)
+ * pairs that have been queried are held by a StandCacheManager
+ * under a budget of bytes, and kept in cacheDB as StandCacheFiles,
+ * so restarts only map the files again. The engines of the most
+ * recently queried pairs are kept too, as long as their stand
+ * caches are resident. Queries are answered
+ * concurrently on a fixed pool of threads.
+ *
+ * The rules and withdrawn cards are given as query parameters
+ * (all optional): decks, s17, das, rsa, bj, splits, exactaces (see
+ * BlackjackTableRules.isExactSplitAces) and withdrawn (ten
+ * comma-separated counts). The endpoints are:
+ *
+ * - GET /odds?...&hand=c0,...,c9&upcard=u answers one query
+ * - POST /odds/batch?... answers every query of a JSON body of the
+ *   form [[c0, ..., c9, u], ...], in order, answered as one batch
+ *   per upcard (see BlackjackOddsEngine.evaluateBatch); longer
+ *   bodies than MAX_BATCH_SIZE queries can take are refused with
+ *   a 413
+ *
+ * Every answer is a JSON object with the stand, hit, double and
+ * split expected returns, null for unavailable actions.
+ *
+ * @author marioga
+ *
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class BlackjackOddsServer {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int DEFAULT_PORT = 8080;
+    private static final int MAX_BATCH_SIZE = 100000;
+    // Longest query of a batch, with its brackets, commas and spaces
+    private static final int MAX_QUERY_BYTES = 64;
+    private static final int MAX_BODY_BYTES =
+            MAX_BATCH_SIZE * MAX_QUERY_BYTES;
+    private static final int MAX_DECKS = 8;
+    // Bytes of stand caches held by default
+    private static final long DEFAULT_CACHE_BUDGET = 1L << 30;
+    // Number of engines kept warm
+    private static final int MAX_ENGINES = 64;
+
+    private final HttpServer mServer;
+    private final ExecutorService mExecutor;
+    private final File mCacheDir;
+    private final int mParallelism;
+    private final StandCacheManager mCaches;
+    /*
+     * Engines by rules and withdrawn cards, least recently used
+     * first. Rules that share a stand fingerprint have different
+     * engines but the same cache, so engines are tied to the
+     * manager entries by their cache, and dropped when it is evicted
+     */
+    private final Map<String, BlackjackOddsEngine> mEngines =
+            new LinkedHashMap<String, BlackjackOddsEngine>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<String, BlackjackOddsEngine> eldest) {
+            return size() > MAX_ENGINES;
+        }
+    };
+
+    public BlackjackOddsServer(int port, int threads, File cacheDir)
+            throws IOException {
+        this(port, threads, cacheDir, DEFAULT_CACHE_BUDGET);
+    }
+
+    /**
+     * @param port port to listen on, 0 for any free port
+     * @param threads number of threads answering queries
+     * @param cacheDir directory of the cache files
+     * @param cacheBudget number of bytes the stand caches may hold
+     */
+    public BlackjackOddsServer(int port, int threads, File cacheDir,
+            long cacheBudget) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException(
+                    "Number of threads must be positive: " + threads);
+        }
+        mCacheDir = cacheDir;
+        mParallelism = threads;
+        mCaches = new StandCacheManager(cacheBudget,
+                StandCacheManager.EvictionPolicy.LEAST_RECENTLY_USED,
+                this::loadCache, this::dropEngines);
+        mServer = HttpServer.create(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), port), 0);
+        mExecutor = Executors.newFixedThreadPool(threads);
+        mServer.setExecutor(mExecutor);
+        mServer.createContext("/odds", this::handleOdds);
+        mServer.createContext("/odds/batch", this::handleBatch);
+    }
+
+    public void start() {
+        mServer.start();
+        System.out.println("Serving odds on "
+                + mServer.getAddress().getHostString() + ":" + getPort());
+    }
+
+    public void stop() {
+        mServer.stop(0);
+        mExecutor.shutdown();
+    }
+
+    public int getPort() {
+        return mServer.getAddress().getPort();
+    }
+
+    public StandCacheManager getCaches() {
+        return mCaches;
+    }
+
+    /**
+     * This method returns the engine of a pair of rules and
+     * withdrawn cards, building it (and loading its stand cache)
+     * if it is not kept. The stand cache of the engine is held
+     * until the engine is given back to releaseEngine.
+     * @param rules rules of the game
+     * @param withdrawnCards withdrawn cards
+     * @return the engine of the pair
+     * @throws IllegalArgumentException if the withdrawn cards do not
+     * fit in the shoe
+     */
+
+    public BlackjackOddsEngine getEngine(BlackjackTableRules rules,
+            int[] withdrawnCards) {
+        checkShoe(rules, withdrawnCards);
+        StandExpectationCache cache = mCaches.getCache(rules,
+                withdrawnCards);
+        String key = rules + Arrays.toString(withdrawnCards);
+        synchronized (mEngines) {
+            BlackjackOddsEngine engine = mEngines.get(key);
+            // The cache may have been evicted and loaded again
+            if (engine == null || engine.getCache() != cache) {
+                engine = new BlackjackOddsEngine(rules, withdrawnCards,
+                        cache);
+                // Its engines were dropped if it was evicted meanwhile
+                if (!mCaches.isEvicted(cache)) {
+                    mEngines.put(key, engine);
+                }
+            }
+            return engine;
+        }
+    }
+
+    public void releaseEngine(BlackjackOddsEngine engine) {
+        mCaches.release(engine.getCache());
+    }
+
+    private void dropEngines(StandExpectationCache cache) {
+        synchronized (mEngines) {
+            mEngines.values().removeIf(engine -> engine.getCache() == cache);
+        }
+    }
+
+    private static void checkShoe(BlackjackTableRules rules,
+            int[] withdrawnCards) {
+        int numDecks = rules.getNumDecks();
+        if (numDecks < 1 || numDecks > MAX_DECKS) {
+            throw new IllegalArgumentException("Number of decks must be"
+                    + " between 1 and " + MAX_DECKS + ": " + numDecks);
+        }
+        if (withdrawnCards.length != SIZE) {
+            throw new IllegalArgumentException(
+                    "Expected " + SIZE + " counts: "
+                    + Arrays.toString(withdrawnCards));
+        }
+        for (int i = 0; i < SIZE; i++) {
+            if (withdrawnCards[i] < 0
+                    || withdrawnCards[i] > numDecks * OCURRENCES[i]) {
+                throw new IllegalArgumentException("Withdrawn cards do not"
+                        + " fit in the shoe: "
+                        + Arrays.toString(withdrawnCards));
+            }
+        }
+    }
+
+    private StandExpectationCache loadCache(BlackjackTableRules rules,
+            int[] withdrawnCards) {
+        mCacheDir.mkdirs();
+        // Stand values only depend on these rules
+        StringBuilder name = new StringBuilder("stand_")
+                .append(rules.isDealerStandsSoft17() ? "S" : "H")
+                .append(rules.getNumDecks())
+                .append("_B").append(Float.floatToIntBits(
+                        rules.getBlackjackPays()))
+                .append("_C").append(withdrawnCards[0]);
+        for (int i = 1; i < SIZE; i++) {
+            name.append('_').append(withdrawnCards[i]);
+        }
+        return new StandExpectationCache(rules, withdrawnCards.clone(),
+                new File(mCacheDir, name.append(".bin").toString()),
+                mParallelism);
+    }
+
+    private void handleOdds(HttpExchange exchange) throws IOException {
+        try {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"error\":\"GET expected\"}");
+                return;
+            }
+            Map<String, String> params = parseQuery(exchange);
+            BlackjackOddsEngine engine = getEngine(parseRules(params),
+                    parseCards(params.get("withdrawn")));
+            int[] query = Arrays.copyOf(parseCards(params.get("hand")),
+                    SIZE + 1);
+            query[SIZE] = parseInt(params, "upcard", -1);
+            HandOdds odds;
+            try {
+                odds = engine.evaluate(checkQuery(engine, query),
+                        query[SIZE]);
+            } finally {
+                releaseEngine(engine);
+            }
+            send(exchange, 200, toJson(odds));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, errorJson(e));
+        } catch (RuntimeException e) {
+            send(exchange, 500, errorJson(e));
+        }
+    }
+
+    private void handleBatch(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "{\"error\":\"POST expected\"}");
+                return;
+            }
+            String body = readBody(exchange);
+            if (body == null) {
+                send(exchange, 413, "{\"error\":\"Batch bodies hold at most "
+                        + MAX_BODY_BYTES + " bytes\"}");
+                return;
+            }
+            List<int[]> queries = parseBatch(body);
+            Map<String, String> params = parseQuery(exchange);
+            BlackjackOddsEngine engine = getEngine(parseRules(params),
+                    parseCards(params.get("withdrawn")));
+            HandOdds[] odds;
+            try {
+                odds = evaluate(engine, queries);
+            } finally {
+                releaseEngine(engine);
+            }
+            StringBuilder response = new StringBuilder("[");
+            for (int i = 0; i < odds.length; i++) {
+                if (i > 0) {
+                    response.append(',');
+                }
+                response.append(toJson(odds[i]));
+            }
+            send(exchange, 200, response.append(']').toString());
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, errorJson(e));
+        } catch (RuntimeException e) {
+            send(exchange, 500, errorJson(e));
+        }
+    }
+
+    /*
+     * Answers the queries of a batch in order, after checking all
+     * of them, with one engine batch per upcard
+     */
+    private static HandOdds[] evaluate(BlackjackOddsEngine engine,
+            List<int[]> queries) {
+        List<List<Integer>> byUpcard = new ArrayList<>();
+        for (int upcard = 0; upcard < SIZE; upcard++) {
+            byUpcard.add(new ArrayList<>());
+        }
+        int[][] playerHands = new int[queries.size()][];
+        for (int i = 0; i < queries.size(); i++) {
+            playerHands[i] = checkQuery(engine, queries.get(i));
+            byUpcard.get(queries.get(i)[SIZE]).add(i);
+        }
+        HandOdds[] odds = new HandOdds[queries.size()];
+        for (int upcard = 0; upcard < SIZE; upcard++) {
+            List<Integer> indexes = byUpcard.get(upcard);
+            if (indexes.isEmpty()) {
+                continue;
+            }
+            List<int[]> hands = new ArrayList<>(indexes.size());
+            for (int i : indexes) {
+                hands.add(playerHands[i]);
+            }
+            HandOdds[] answers = engine.evaluateBatch(hands, upcard);
+            for (int k = 0; k < answers.length; k++) {
+                odds[indexes.get(k)] = answers[k];
+            }
+        }
+        return odds;
+    }
+
+    /*
+     * Checks that the hand of a query of ten counts followed by
+     * the upcard can be dealt, and returns it
+     */
+    private static int[] checkQuery(BlackjackOddsEngine engine,
+            int[] query) {
+        int[] withdrawnCards = engine.getWithdrawnCards();
+        int numDecks = engine.getRules().getNumDecks();
+        int upcard = query[SIZE];
+        if (upcard < 0 || upcard >= SIZE) {
+            throw new IllegalArgumentException("Bad upcard: " + upcard);
+        }
+        int[] playerHand = Arrays.copyOf(query, SIZE);
+        int numCards = 0;
+        int hardSum = 0;
+        for (int i = 0; i < SIZE; i++) {
+            int dealt = playerHand[i] + withdrawnCards[i]
+                    + (i == upcard ? 1 : 0);
+            if (playerHand[i] < 0 || dealt > numDecks * OCURRENCES[i]) {
+                throw new IllegalArgumentException("Hand cannot be dealt: "
+                        + Arrays.toString(playerHand));
+            }
+            numCards += playerHand[i];
+            hardSum += VALUES[i] * playerHand[i];
+        }
+        if (numCards < 2 || hardSum > 21) {
+            throw new IllegalArgumentException("Hand must have two or more"
+                    + " cards and not be busted: "
+                    + Arrays.toString(playerHand));
+        }
+        return playerHand;
+    }
+
+    private static String toJson(HandOdds odds) {
+        return "{\"stand\":" + toJson(odds.getStand())
+                + ",\"hit\":" + toJson(odds.getHit())
+                + ",\"double\":" + toJson(odds.getDouble())
+                + ",\"split\":" + toJson(odds.getSplit()) + "}";
+    }
+
+    private static String toJson(float value) {
+        return Float.isNaN(value) ? "null" : Float.toString(value);
+    }
+
+    private static String errorJson(RuntimeException e) {
+        String message = String.valueOf(e.getMessage())
+                .replace("\\", "\\\\").replace("\"", "\\\"");
+        return "{\"error\":\"" + message + "\"}";
+    }
+
+    private static BlackjackTableRules parseRules(Map<String, String> params) {
+        return new BlackjackTableRules(parseInt(params, "decks", 8),
+                parseBoolean(params, "s17", true),
+                parseBoolean(params, "das", true),
+                parseBoolean(params, "rsa", false),
+                parseFloat(params, "bj", 1.5f),
+                parseInt(params, "splits",
+                        BlackjackTableRules.DEFAULT_MAX_SPLIT_HANDS),
+                parseBoolean(params, "exactaces", false));
+    }
+
+    private static int[] parseCards(String value) {
+        int[] cards = new int[SIZE];
+        if (value == null) {
+            return cards;
+        }
+        String[] counts = value.split(",");
+        if (counts.length != SIZE) {
+            throw new IllegalArgumentException(
+                    "Expected " + SIZE + " counts: " + value);
+        }
+        for (int i = 0; i < SIZE; i++) {
+            cards[i] = Integer.parseInt(counts[i].trim());
+        }
+        return cards;
+    }
+
+    private static int parseInt(Map<String, String> params, String name,
+            int defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    private static float parseFloat(Map<String, String> params, String name,
+            float defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Float.parseFloat(value);
+    }
+
+    private static boolean parseBoolean(Map<String, String> params,
+            String name, boolean defaultValue) {
+        String value = params.get(name);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    private static Map<String, String> parseQuery(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return params;
+        }
+        for (String pair : query.split("&")) {
+            int equals = pair.indexOf('=');
+            if (equals > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, equals),
+                        StandardCharsets.UTF_8),
+                        URLDecoder.decode(pair.substring(equals + 1),
+                                StandardCharsets.UTF_8));
+            }
+        }
+        return params;
+    }
+
+    /*
+     * Parses a JSON array of arrays of SIZE + 1 integers
+     */
+    private static List<int[]> parseBatch(String body) {
+        List<int[]> queries = new ArrayList<>();
+        String text = body.trim();
+        if (!text.startsWith("[") || !text.endsWith("]")) {
+            throw new IllegalArgumentException("Expected a JSON array");
+        }
+        text = text.substring(1, text.length() - 1).trim();
+        int position = 0;
+        while (position < text.length()) {
+            int open = text.indexOf('[', position);
+            int close = text.indexOf(']', position);
+            if (open != position || close < 0) {
+                throw new IllegalArgumentException(
+                        "Expected an array at offset " + position);
+            }
+            String[] numbers = text.substring(open + 1, close).split(",");
+            if (numbers.length != SIZE + 1) {
+                throw new IllegalArgumentException("Expected " + (SIZE + 1)
+                        + " numbers at offset " + position);
+            }
+            int[] query = new int[SIZE + 1];
+            for (int i = 0; i <= SIZE; i++) {
+                query[i] = Integer.parseInt(numbers[i].trim());
+            }
+            queries.add(query);
+            if (queries.size() > MAX_BATCH_SIZE) {
+                throw new IllegalArgumentException(
+                        "Batches hold at most " + MAX_BATCH_SIZE + " queries");
+            }
+            position = close + 1;
+            while (position < text.length()
+                    && (text.charAt(position) == ','
+                            || Character.isWhitespace(text.charAt(position)))) {
+                position++;
+            }
+        }
+        return queries;
+    }
+
+    /*
+     * Returns null, without reading the rest, once the body
+     * exceeds MAX_BODY_BYTES
+     */
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                if (body.size() + read > MAX_BODY_BYTES) {
+                    return null;
+                }
+                body.write(buffer, 0, read);
+            }
+            return body.toString(StandardCharsets.UTF_8);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status,
+            String json) throws IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * @param args the port to listen on and the number of threads,
+     * both optional
+     */
+    public static void main(String[] args) throws IOException {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        int threads = args.length > 1 ? Integer.parseInt(args[1])
+                : Runtime.getRuntime().availableProcessors();
+        BlackjackOddsServer server = new BlackjackOddsServer(port, threads,
+                new File("cacheDB"));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        server.start();
+    }
+}
@@ -0,0 +1,438 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class plays rounds of blackjack following the best actions
+ * of a StrategyTable, to cross-check the expected returns of the
+ * exact computations. Rounds are played by a pool of worker
+ * threads. Every worker has its own SplittableRandom stream (split
+ * from a single seed, and a fixed share of the rounds, so a run
+ * only depends on the seed and the parallelism), its own shoe and its
+ * own hands, all reused from round to round, so the rounds allocate
+ * nothing. The shoe holds the table's decks minus its withdrawn
+ * cards and is reshuffled once the cut card (given as a fraction of
+ * the shoe) is reached.
+ *
+ * The dealer peeks for blackjack under an Ace or a 10, split Aces
+ * get one card each (and A + 10 is not a blackjack), and hands are
+ * split up to the maximum number of hands of the rules.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+public class BlackjackSimulator {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    // Rounds a worker plays before adding them to the totals
+    private static final int ROUNDS_PER_CHUNK = 1 << 16;
+    // Two-sided 95% quantile of the normal distribution
+    private static final double Z_95 = 1.959964;
+
+    private final StrategyTable mStrategy;
+    private final BlackjackTableRules mRules;
+    private final HandIndexer mIndexer;
+    private final int[] mShoe;
+    private final int mCutCard;
+    private final int mParallelism;
+    // Expected returns of stand, hit, double and split of each cell
+    private final float[] mOdds;
+
+    /**
+     * @param strategy table whose best actions are played
+     * @param penetration fraction of the shoe dealt before reshuffling
+     * @param parallelism number of worker threads
+     */
+    public BlackjackSimulator(StrategyTable strategy, double penetration,
+            int parallelism) {
+        if (!(penetration > 0 && penetration <= 1)) {
+            throw new IllegalArgumentException(
+                    "Penetration must be in (0, 1]: " + penetration);
+        }
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        mStrategy = strategy;
+        mRules = strategy.getRules();
+        mIndexer = strategy.getIndexer();
+        int[] withdrawnCards = strategy.getWithdrawnCards();
+        int shoeSize = 0;
+        int[] counts = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            counts[i] = mRules.getNumDecks() * OCURRENCES[i]
+                    - withdrawnCards[i];
+            shoeSize += counts[i];
+        }
+        mShoe = new int[shoeSize];
+        for (int i = 0, k = 0; i < SIZE; i++) {
+            for (int j = 0; j < counts[i]; j++) {
+                mShoe[k++] = i;
+            }
+        }
+        mCutCard = Math.max(1, (int) (penetration * shoeSize));
+        mParallelism = parallelism;
+
+        int numCells = mIndexer.getNumCells();
+        mOdds = new float[4 * numCells];
+        for (int cell = 0; cell < numCells; cell++) {
+            HandOdds odds = strategy.getOdds(cell);
+            mOdds[4 * cell + StrategyTable.ACTION_STAND] = odds.getStand();
+            mOdds[4 * cell + StrategyTable.ACTION_HIT] = odds.getHit();
+            mOdds[4 * cell + StrategyTable.ACTION_DOUBLE] = odds.getDouble();
+            mOdds[4 * cell + StrategyTable.ACTION_SPLIT] = odds.getSplit();
+        }
+    }
+
+    public StrategyTable getStrategy() {
+        return mStrategy;
+    }
+
+    public Result run(long rounds, long seed) {
+        return run(rounds, seed, rounds, null);
+    }
+
+    /**
+     * This method plays a number of rounds, reporting the totals
+     * so far to a listener roughly every reportInterval rounds.
+     * @param rounds number of rounds to play
+     * @param seed seed of the random streams of the workers
+     * @param reportInterval rounds between reports
+     * @param listener receives the reports, from the worker threads;
+     * may be null
+     * @return the totals of all the rounds
+     */
+
+    public Result run(long rounds, long seed, long reportInterval,
+            Consumer<Result> listener) {
+        if (rounds < 1 || reportInterval < 1) {
+            throw new IllegalArgumentException("Rounds and report interval"
+                    + " must be positive: " + rounds + ", " + reportInterval);
+        }
+        Totals totals = new Totals(reportInterval, listener);
+        SplittableRandom random = new SplittableRandom(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(mParallelism);
+        try {
+            Future<?>[] futures = new Future<?>[mParallelism];
+            for (int i = 0; i < mParallelism; i++) {
+                Worker worker = new Worker(random.split());
+                long share = rounds / mParallelism
+                        + (i < rounds % mParallelism ? 1 : 0);
+                futures[i] = executor.submit(() -> {
+                    for (long left = share; left > 0;
+                            left -= ROUNDS_PER_CHUNK) {
+                        worker.play(Math.min(left, ROUNDS_PER_CHUNK));
+                        totals.add(worker);
+                    }
+                });
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return totals.getResult();
+    }
+
+    private static int value(int hardSum, boolean ace) {
+        if (hardSum <= 11 && ace) {
+            return hardSum + 10;
+        }
+        return hardSum;
+    }
+
+    /*
+     * Totals of one run, added to by every worker after each chunk
+     */
+    private static final class Totals {
+        private final long mStart = System.nanoTime();
+        private final long mReportInterval;
+        private final Consumer<Result> mListener;
+        private long mRounds;
+        private double mSum;
+        private double mSumSquares;
+        private long mNextReport;
+
+        Totals(long reportInterval, Consumer<Result> listener) {
+            mReportInterval = reportInterval;
+            mListener = listener;
+            mNextReport = reportInterval;
+        }
+
+        synchronized void add(Worker worker) {
+            mRounds += worker.mRounds;
+            mSum += worker.mSum;
+            mSumSquares += worker.mSumSquares;
+            worker.mRounds = 0;
+            worker.mSum = 0;
+            worker.mSumSquares = 0;
+            if (mListener != null && mRounds >= mNextReport) {
+                mNextReport = (mRounds / mReportInterval + 1)
+                        * mReportInterval;
+                mListener.accept(getResult());
+            }
+        }
+
+        synchronized Result getResult() {
+            return new Result(mRounds, mSum, mSumSquares,
+                    System.nanoTime() - mStart);
+        }
+    }
+
+    /*
+     * Plays the rounds of one thread
+     */
+    private final class Worker {
+        private final SplittableRandom mRandom;
+        // Cards before mPosition have been dealt; the ones from
+        // mRoundStart on are still on the table
+        private final int[] mCards = mShoe.clone();
+        private int mPosition = mCards.length;
+        private int mRoundStart;
+
+        private final int mMaxHands = mRules.getMaxSplitHands();
+        private final int[][] mHands = new int[mMaxHands][SIZE];
+        private final int[] mHardSums = new int[mMaxHands];
+        private final int[] mNumCards = new int[mMaxHands];
+        private final int[] mFirstCards = new int[mMaxHands];
+        private final int[] mBets = new int[mMaxHands];
+        private int mNumHands;
+
+        private long mRounds;
+        private double mSum;
+        private double mSumSquares;
+
+        Worker(SplittableRandom random) {
+            mRandom = random;
+        }
+
+        void play(long rounds) {
+            for (long i = 0; i < rounds; i++) {
+                if (mPosition >= mCutCard) {
+                    // Cards are drawn at random from the ones not dealt
+                    mPosition = 0;
+                }
+                mRoundStart = mPosition;
+                double result = playRound();
+                mRounds++;
+                mSum += result;
+                mSumSquares += result * result;
+            }
+        }
+
+        private int draw() {
+            if (mPosition == mCards.length) {
+                // Out of cards mid round: the discards go back to
+                // the shoe, the cards on the table do not
+                for (int i = mRoundStart; i < mPosition; i++) {
+                    swap(i, i - mRoundStart);
+                }
+                mPosition -= mRoundStart;
+                mRoundStart = 0;
+            }
+            swap(mPosition,
+                    mPosition + mRandom.nextInt(mCards.length - mPosition));
+            return mCards[mPosition++];
+        }
+
+        private void swap(int i, int j) {
+            int card = mCards[i];
+            mCards[i] = mCards[j];
+            mCards[j] = card;
+        }
+
+        private double playRound() {
+            mNumHands = 1;
+            startHand(0, draw());
+            int upcard = draw();
+            addCard(0, draw());
+            int holeCard = draw();
+
+            boolean playerBlackJack = value(mHardSums[0],
+                    mHands[0][0] > 0) == 21;
+            boolean dealerBlackJack = value(VALUES[upcard]
+                    + VALUES[holeCard], upcard == 0 || holeCard == 0) == 21;
+            if (dealerBlackJack) {
+                return playerBlackJack ? 0 : -1;
+            }
+            if (playerBlackJack) {
+                return mRules.getBlackjackPays();
+            }
+
+            boolean allBusted = true;
+            for (int hand = 0; hand < mNumHands; hand++) {
+                if (mNumCards[hand] < 2) {
+                    addCard(hand, draw());
+                }
+                // Hands after the first one come from splits
+                playHand(hand, upcard, hand > 0 && mFirstCards[hand] == 0);
+                allBusted = allBusted && mHardSums[hand] > 21;
+            }
+
+            int dealerValue = 0;
+            if (!allBusted) {
+                dealerValue = playDealer(upcard, holeCard);
+            }
+            double result = 0;
+            for (int hand = 0; hand < mNumHands; hand++) {
+                int value = value(mHardSums[hand], mHands[hand][0] > 0);
+                if (value > 21 || (dealerValue <= 21 && value < dealerValue)) {
+                    result -= mBets[hand];
+                } else if (dealerValue > 21 || value > dealerValue) {
+                    result += mBets[hand];
+                }
+            }
+            return result;
+        }
+
+        private void playHand(int hand, int upcard, boolean splitAces) {
+            boolean canDouble = mNumHands == 1 || mRules.isDoubleAfterSplit();
+            while (true) {
+                int hardSum = mHardSums[hand];
+                int numCards = mNumCards[hand];
+                if (value(hardSum, mHands[hand][0] > 0) >= 21) {
+                    return;
+                }
+                boolean pair = numCards == 2
+                        && mHands[hand][mFirstCards[hand]] == 2;
+                boolean canSplit = pair && mNumHands < mMaxHands
+                        && !(splitAces && !mRules.isAceReSplits());
+                if (splitAces && !canSplit) {
+                    // Split Aces only get one card
+                    return;
+                }
+                int offset = 4 * mIndexer.getIndex(mHands[hand], upcard);
+                int action = StrategyTable.getBestAction(
+                        mOdds[offset + StrategyTable.ACTION_STAND],
+                        splitAces ? Float.NaN
+                                : mOdds[offset + StrategyTable.ACTION_HIT],
+                        (numCards == 2 && canDouble && !splitAces)
+                                ? mOdds[offset + StrategyTable.ACTION_DOUBLE]
+                                : Float.NaN,
+                        canSplit ? mOdds[offset + StrategyTable.ACTION_SPLIT]
+                                : Float.NaN);
+                switch (action) {
+                case StrategyTable.ACTION_HIT:
+                    addCard(hand, draw());
+                    break;
+                case StrategyTable.ACTION_DOUBLE:
+                    mBets[hand] = 2;
+                    addCard(hand, draw());
+                    return;
+                case StrategyTable.ACTION_SPLIT:
+                    int card = mFirstCards[hand];
+                    startHand(hand, card);
+                    startHand(mNumHands++, card);
+                    canDouble = mRules.isDoubleAfterSplit();
+                    splitAces = card == 0;
+                    addCard(hand, draw());
+                    break;
+                default:
+                    return;
+                }
+            }
+        }
+
+        private int playDealer(int upcard, int holeCard) {
+            int hardSum = VALUES[upcard] + VALUES[holeCard];
+            boolean ace = upcard == 0 || holeCard == 0;
+            int value = value(hardSum, ace);
+            while (value < 17 || (value == 17 && hardSum != 17
+                    && !mRules.isDealerStandsSoft17())) {
+                int card = draw();
+                hardSum += VALUES[card];
+                ace = ace || card == 0;
+                value = value(hardSum, ace);
+            }
+            return value;
+        }
+
+        private void startHand(int hand, int card) {
+            int[] counts = mHands[hand];
+            for (int i = 0; i < SIZE; i++) {
+                counts[i] = 0;
+            }
+            counts[card] = 1;
+            mHardSums[hand] = VALUES[card];
+            mNumCards[hand] = 1;
+            mFirstCards[hand] = card;
+            mBets[hand] = 1;
+        }
+
+        private void addCard(int hand, int card) {
+            mHands[hand][card]++;
+            mHardSums[hand] += VALUES[card];
+            mNumCards[hand]++;
+        }
+    }
+
+    /**
+     * This class holds the totals of a number of rounds, with the
+     * expected return per round and its 95% confidence interval.
+     */
+    public static final class Result {
+        private final long mRounds;
+        private final double mSum;
+        private final double mSumSquares;
+        private final long mElapsedNanos;
+
+        Result(long rounds, double sum, double sumSquares,
+                long elapsedNanos) {
+            mRounds = rounds;
+            mSum = sum;
+            mSumSquares = sumSquares;
+            mElapsedNanos = elapsedNanos;
+        }
+
+        public long getRounds() {
+            return mRounds;
+        }
+
+        public double getExpectedValue() {
+            return mSum / mRounds;
+        }
+
+        public double getStandardDeviation() {
+            double mean = getExpectedValue();
+            return Math.sqrt(Math.max(0,
+                    mSumSquares / mRounds - mean * mean));
+        }
+
+        public double getStandardError() {
+            return getStandardDeviation() / Math.sqrt(mRounds);
+        }
+
+        public double getLowerBound() {
+            return getExpectedValue() - Z_95 * getStandardError();
+        }
+
+        public double getUpperBound() {
+            return getExpectedValue() + Z_95 * getStandardError();
+        }
+
+        public double getRoundsPerSecond() {
+            return mRounds * 1e9 / mElapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Result[rounds=%d, ev=%.6f, 95%% CI=[%.6f,"
+                    + " %.6f], rounds/s=%.0f]", mRounds, getExpectedValue(),
+                    getLowerBound(), getUpperBound(), getRoundsPerSecond());
+        }
+    }
+}
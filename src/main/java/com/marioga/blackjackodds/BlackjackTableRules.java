@@ -8,12 +8,18 @@ package com.marioga.blackjackodds;
  *
  */
 
+import java.util.Objects;
+
 public class BlackjackTableRules {
+    public static final int DEFAULT_MAX_SPLIT_HANDS = 4;
+
     private final int mNumDecks;
     private final boolean mDealerStandsSoft17;
     private final boolean mDoubleAfterSplit;
     private final boolean mAceReSplits;
     private final float mBlackjackPays;
+    private final int mMaxSplitHands;
+    private final boolean mExactSplitAces;
     
     public int getNumDecks() {
         return mNumDecks;
@@ -35,13 +41,101 @@ public class BlackjackTableRules {
         return mBlackjackPays;
     }
 
+    /**
+     * Returns the largest number of hands a player
+     * can hold by splitting and resplitting pairs.
+     */
+
+    public int getMaxSplitHands() {
+        return mMaxSplitHands;
+    }
+
+    /**
+     * Returns whether a pair of aces that cannot be resplit is
+     * evaluated exactly, taking the cards drawn to both aces out of
+     * the shoe, rather than playing each ace as if the card drawn
+     * to the other one was still in the shoe.
+     */
+
+    public boolean isExactSplitAces() {
+        return mExactSplitAces;
+    }
+
     public BlackjackTableRules(int numDecks, boolean dealerStandsSoft17,
             boolean doubleAfterSplit, boolean aceReSplits,
             float blackjackPays) {
+        this(numDecks, dealerStandsSoft17, doubleAfterSplit, aceReSplits,
+                blackjackPays, DEFAULT_MAX_SPLIT_HANDS);
+    }
+
+    public BlackjackTableRules(int numDecks, boolean dealerStandsSoft17,
+            boolean doubleAfterSplit, boolean aceReSplits,
+            float blackjackPays, int maxSplitHands) {
+        this(numDecks, dealerStandsSoft17, doubleAfterSplit, aceReSplits,
+                blackjackPays, maxSplitHands, false);
+    }
+
+    public BlackjackTableRules(int numDecks, boolean dealerStandsSoft17,
+            boolean doubleAfterSplit, boolean aceReSplits,
+            float blackjackPays, int maxSplitHands,
+            boolean exactSplitAces) {
+        if (maxSplitHands < 2) {
+            throw new IllegalArgumentException(
+                    "A split makes at least two hands: " + maxSplitHands);
+        }
         mNumDecks = numDecks;
         mDealerStandsSoft17 = dealerStandsSoft17;
         mDoubleAfterSplit = doubleAfterSplit;
         mAceReSplits = aceReSplits;
         mBlackjackPays = blackjackPays;
+        mMaxSplitHands = maxSplitHands;
+        mExactSplitAces = exactSplitAces;
+    }
+
+    /**
+     * Returns a key of the rules that stand expectations depend
+     * on: the number of decks, the soft 17 rule and the blackjack
+     * payout. Rules with the same key share their stand values.
+     */
+
+    public String getStandFingerprint() {
+        return mNumDecks + (mDealerStandsSoft17 ? "S" : "H")
+                + mBlackjackPays;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof BlackjackTableRules)) {
+            return false;
+        }
+        BlackjackTableRules other = (BlackjackTableRules) o;
+        return mNumDecks == other.mNumDecks
+                && mDealerStandsSoft17 == other.mDealerStandsSoft17
+                && mDoubleAfterSplit == other.mDoubleAfterSplit
+                && mAceReSplits == other.mAceReSplits
+                && Float.compare(mBlackjackPays, other.mBlackjackPays) == 0
+                && mMaxSplitHands == other.mMaxSplitHands
+                && mExactSplitAces == other.mExactSplitAces;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(mNumDecks, mDealerStandsSoft17,
+                mDoubleAfterSplit, mAceReSplits, mBlackjackPays,
+                mMaxSplitHands, mExactSplitAces);
+    }
+
+    @Override
+    public String toString() {
+        return "BlackjackTableRules[decks=" + mNumDecks
+                + ", standsSoft17=" + mDealerStandsSoft17
+                + ", doubleAfterSplit=" + mDoubleAfterSplit
+                + ", aceReSplits=" + mAceReSplits
+                + ", blackjackPays=" + mBlackjackPays
+                + ", maxSplitHands=" + mMaxSplitHands
+                + ", exactSplitAces=" + mExactSplitAces + "]";
     }
 }
@@ -0,0 +1,132 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class represents a mutable group of cards (a hand, or
+ * the cards out of the shoe) by its count of each rank. Adding
+ * or removing a card is O(1) and keeps the number of cards, the
+ * hard sum and the HandEncoder code of the group up to date,
+ * so that the recursive computations can walk the game tree
+ * on a single instance without cloning arrays.
+ *
+ * @author marioga
+ *
+ */
+
+public class CardComposition {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final long[] CODE_WEIGHTS = new long[10];
+    private static final int SIZE = 10;
+
+    static {
+        CODE_WEIGHTS[0] = 1;
+        for (int i = 1; i < SIZE; i++) {
+            CODE_WEIGHTS[i] = 23 * CODE_WEIGHTS[i - 1];
+        }
+    }
+
+    private final int[] mCounts = new int[SIZE];
+    private int mNumCards;
+    private int mHardSum;
+    private long mCode;
+
+    public CardComposition() { }
+
+    public CardComposition(int[] counts) {
+        set(counts);
+    }
+
+    public void set(int[] counts) {
+        clear();
+        for (int i = 0; i < SIZE; i++) {
+            add(i, counts[i]);
+        }
+    }
+
+    public void set(CardComposition other) {
+        System.arraycopy(other.mCounts, 0, mCounts, 0, SIZE);
+        mNumCards = other.mNumCards;
+        mHardSum = other.mHardSum;
+        mCode = other.mCode;
+    }
+
+    public void clear() {
+        for (int i = 0; i < SIZE; i++) {
+            mCounts[i] = 0;
+        }
+        mNumCards = 0;
+        mHardSum = 0;
+        mCode = 0;
+    }
+
+    public void add(int rank) {
+        mCounts[rank]++;
+        mNumCards++;
+        mHardSum += VALUES[rank];
+        mCode += CODE_WEIGHTS[rank];
+    }
+
+    public void add(int rank, int count) {
+        mCounts[rank] += count;
+        mNumCards += count;
+        mHardSum += count * VALUES[rank];
+        mCode += count * CODE_WEIGHTS[rank];
+    }
+
+    public void remove(int rank) {
+        mCounts[rank]--;
+        mNumCards--;
+        mHardSum -= VALUES[rank];
+        mCode -= CODE_WEIGHTS[rank];
+    }
+
+    public int count(int rank) {
+        return mCounts[rank];
+    }
+
+    public int getNumCards() {
+        return mNumCards;
+    }
+
+    public int getHardSum() {
+        return mHardSum;
+    }
+
+    public boolean hasAce() {
+        return mCounts[0] > 0;
+    }
+
+    public int value() {
+        if (mHardSum <= 11 && mCounts[0] > 0) {
+            return mHardSum + 10;
+        }
+        return mHardSum;
+    }
+
+    public boolean isSoft() {
+        return mHardSum <= 11 && mCounts[0] > 0;
+    }
+
+    public boolean isBlackJack() {
+        return mNumCards == 2 && value() == 21;
+    }
+
+    /**
+     * Returns the same value as HandEncoder.encodeHand, which
+     * is unique as long as every count is below 23.
+     */
+    public long getCode() {
+        return mCode;
+    }
+
+    /**
+     * Returns the counts backing this composition;
+     * they must not be modified.
+     */
+    public int[] getCounts() {
+        return mCounts;
+    }
+
+    public int[] toArray() {
+        return mCounts.clone();
+    }
+}
@@ -0,0 +1,332 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class computes the probability distribution of the
+ * final result of the dealer hand (17, 18, 19, 20, 21,
+ * blackjack or bust), given the dealer hand and the cards
+ * that are out of the shoe. The dealer outcome does not depend
+ * on the player hand other than through the shoe composition,
+ * so the stand expectation of any player hand is a dot product
+ * against one of these distributions.
+ *
+ * Distributions for a single dealer upcard are memoized per
+ * (upcard, cards out, peek state), up to a bound unless a map is
+ * given to the constructor. Intermediate dealer hands
+ * are memoized for the most recently used shoes, so that
+ * drawing orders such as 2 then 3 and 3 then 2 (or the trees of
+ * different upcards on the same shoe) are only walked once.
+ * The upcard distributions only depend on the total cards out,
+ * so engines may share them, and an engine may look up the
+ * distributions of an earlier computation before walking a
+ * dealer tree (see StandExpectationCache.deriveCache).
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class DealerOutcomeEngine {
+    public static final int OUTCOME_17 = 0;
+    public static final int OUTCOME_18 = 1;
+    public static final int OUTCOME_19 = 2;
+    public static final int OUTCOME_20 = 3;
+    public static final int OUTCOME_21 = 4;
+    public static final int OUTCOME_BLACKJACK = 5;
+    public static final int OUTCOME_BUST = 6;
+    public static final int NUM_OUTCOMES = 7;
+
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int DECK_SIZE = 52;
+    private static final int SIZE = 10;
+    private static final int MAX_CACHED_SHOES = 32;
+    // About 7 MB of memoized upcard distributions per engine
+    private static final int MAX_CACHED_DISTRIBUTIONS = 1 << 16;
+    // Player values above 21 are busted, and lose against every
+    // dealer outcome, even a dealer bust
+    private static final int MAX_PAYOFF_VALUE = 22;
+    /*
+     * Return of standing on each player value (other than a
+     * blackjack) against each dealer outcome
+     */
+    private static final float[][] PAYOFFS =
+            new float[MAX_PAYOFF_VALUE + 1][NUM_OUTCOMES];
+
+    static {
+        Arrays.fill(PAYOFFS[MAX_PAYOFF_VALUE], -1);
+        for (int value = 0; value < MAX_PAYOFF_VALUE; value++) {
+            PAYOFFS[value][OUTCOME_BUST] = 1;
+            PAYOFFS[value][OUTCOME_BLACKJACK] = -1;
+            for (int i = OUTCOME_17; i <= OUTCOME_21; i++) {
+                int dealerValue = 17 + i - OUTCOME_17;
+                if (dealerValue < value) {
+                    PAYOFFS[value][i] = 1;
+                } else if (dealerValue > value) {
+                    PAYOFFS[value][i] = -1;
+                }
+            }
+        }
+    }
+
+    private final BlackjackTableRules mRules;
+    // Mixed radix weights used to encode a cards out vector
+    private final long[] mShoeWeights = new long[SIZE];
+    // Scratch compositions reused by every computation
+    private final CardComposition mDealerHand = new CardComposition();
+    private final CardComposition mUpcardHand = new CardComposition();
+    private final CardComposition mCardsOut = new CardComposition();
+
+    private final Map<Long, float[]> mUpcardDistributions;
+    // Distributions of an earlier computation, looked up before
+    // computing a missing one; may be null
+    private final Map<Long, float[]> mPreviousDistributions;
+    private long mReusedDistributions;
+    private final Map<Long, Map<Long, float[]>> mDealerStates =
+            new LinkedHashMap<Long, Map<Long, float[]>>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(
+                Map.Entry<Long, Map<Long, float[]>> eldest) {
+            return size() > MAX_CACHED_SHOES;
+        }
+    };
+
+    public DealerOutcomeEngine(BlackjackTableRules rules) {
+        this(rules, new LinkedHashMap<Long, float[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(
+                    Map.Entry<Long, float[]> eldest) {
+                return size() > MAX_CACHED_DISTRIBUTIONS;
+            }
+        }, null);
+    }
+
+    /**
+     * This constructor lets several engines share their upcard
+     * distributions.
+     * @param rules rules of the game
+     * @param upcardDistributions map where the upcard distributions
+     * are memoized; it must be thread-safe if other engines used
+     * on other threads share it
+     * @param previousDistributions upcard distributions of an
+     * earlier computation with the same rules, which are copied to
+     * upcardDistributions when needed instead of being recomputed;
+     * may be null
+     */
+
+    public DealerOutcomeEngine(BlackjackTableRules rules,
+            Map<Long, float[]> upcardDistributions,
+            Map<Long, float[]> previousDistributions) {
+        mRules = rules;
+        mUpcardDistributions = upcardDistributions;
+        mPreviousDistributions = previousDistributions;
+        long weight = 1;
+        try {
+            for (int i = 0; i < SIZE; i++) {
+                mShoeWeights[i] = weight;
+                weight = Math.multiplyExact(weight,
+                        mRules.getNumDecks() * OCURRENCES[i] + 1);
+            }
+            // Room for the upcard and the peek state
+            Math.multiplyExact(weight, 2 * SIZE);
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(
+                    "Too many decks to encode shoe states: "
+                            + mRules.getNumDecks());
+        }
+    }
+
+    public BlackjackTableRules getRules() {
+        return mRules;
+    }
+
+    /**
+     * This method returns the distribution of the final result
+     * of the dealer hand, indexed by the OUTCOME constants.
+     * The returned array must not be modified.
+     * @param dealerHand current dealer hand
+     * @param otherCardsOut cards out of the shoe other than the
+     * dealer cards (player hand and withdrawn cards)
+     * @param afterPeek has the dealer peeked at the hole card?
+     * @return probabilities of each dealer outcome
+     */
+
+    public float[] getDistribution(int[] dealerHand,
+            int[] otherCardsOut, boolean afterPeek) {
+        mDealerHand.set(dealerHand);
+        mCardsOut.set(otherCardsOut);
+        for (int i = 0; i < SIZE; i++) {
+            mCardsOut.add(i, dealerHand[i]);
+        }
+        return getDistribution(mDealerHand, mCardsOut, afterPeek);
+    }
+
+    /**
+     * Same as above for a dealer showing a single card.
+     * @param upcard rank of the dealer upcard
+     * @param cardsOut cards out of the shoe, including the upcard;
+     * it is left unchanged
+     * @param afterPeek has the dealer peeked at the hole card?
+     * @return probabilities of each dealer outcome
+     */
+
+    public float[] getDistribution(int upcard, CardComposition cardsOut,
+            boolean afterPeek) {
+        mUpcardHand.clear();
+        mUpcardHand.add(upcard);
+        return getDistribution(mUpcardHand, cardsOut, afterPeek);
+    }
+
+    private float[] getDistribution(CardComposition dealerHand,
+            CardComposition cardsOut, boolean afterPeek) {
+        long shoeCode = encodeShoe(cardsOut) - encodeShoe(dealerHand);
+        int upcard = -1;
+        if (dealerHand.getNumCards() == 1) {
+            upcard = 0;
+            while (dealerHand.count(upcard) == 0) {
+                upcard++;
+            }
+        }
+        // Only an ace or a ten showing is peeked at
+        boolean peeked = afterPeek && (upcard == 0 || upcard == 9);
+        long upcardKey = (shoeCode * SIZE + upcard) * 2
+                + (peeked ? 1 : 0);
+        if (upcard != -1) {
+            float[] cached = mUpcardDistributions.get(upcardKey);
+            if (cached != null) {
+                return cached;
+            }
+            if (mPreviousDistributions != null) {
+                cached = mPreviousDistributions.get(upcardKey);
+                if (cached != null) {
+                    mUpcardDistributions.put(upcardKey, cached);
+                    mReusedDistributions++;
+                    return cached;
+                }
+            }
+        }
+
+        Map<Long, float[]> states = mDealerStates.get(shoeCode);
+        if (states == null) {
+            states = new HashMap<Long, float[]>();
+            mDealerStates.put(shoeCode, states);
+        }
+        float[] result = distribution(dealerHand, cardsOut, peeked, states);
+        if (upcard != -1) {
+            mUpcardDistributions.put(upcardKey, result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the number of upcard distributions that were taken
+     * from the previous distributions instead of being computed.
+     */
+
+    public long getReusedDistributions() {
+        return mReusedDistributions;
+    }
+
+    /**
+     * This method computes the stand expectation of a player hand
+     * against a distribution of dealer outcomes.
+     * @param playerHand player hand
+     * @param outcomes distribution returned by getDistribution
+     * @return expected return upon choosing to stand
+     */
+
+    public float expectationStand(int[] playerHand, float[] outcomes) {
+        return expectationStand(Helper.valueHand(playerHand),
+                Helper.isBlackJack(playerHand), outcomes);
+    }
+
+    public float expectationStand(CardComposition playerHand,
+            float[] outcomes) {
+        return expectationStand(playerHand.value(),
+                playerHand.isBlackJack(), outcomes);
+    }
+
+    /**
+     * Same as above for a hand of the given value, which is
+     * only paid as a blackjack if blackJack is true (two-card 21
+     * hands after a split are not).
+     */
+
+    public float expectationStand(int value, boolean blackJack,
+            float[] outcomes) {
+        if (blackJack) {
+            // Only a dealer blackjack pushes
+            return mRules.getBlackjackPays()
+                    * (1 - outcomes[OUTCOME_BLACKJACK]);
+        }
+        return OutcomeKernels.dot(outcomes,
+                PAYOFFS[Math.min(value, MAX_PAYOFF_VALUE)]);
+    }
+
+    private float[] distribution(CardComposition dealerHand,
+            CardComposition cardsOut, boolean peeked,
+            Map<Long, float[]> states) {
+        // The peek only matters while the hole card is unknown
+        long key = 2 * dealerHand.getCode() + (peeked ? 1 : 0);
+        float[] result = states.get(key);
+        if (result != null) {
+            return result;
+        }
+        result = new float[NUM_OUTCOMES];
+
+        int value = dealerHand.value();
+        if (value <= 16 || (value == 17 && dealerHand.isSoft()
+                && !mRules.isDealerStandsSoft17())) {
+            // Dealer hits
+            int numDecks = mRules.getNumDecks();
+            // Number of cards left
+            int total = numDecks * DECK_SIZE - cardsOut.getNumCards();
+            int holeCardIsNotThis = -1;
+            if (peeked) { // We know the hole card
+                          // is not equal to this value
+                holeCardIsNotThis = (dealerHand.count(9) == 1) ? 0 : 9;
+                total -= OCURRENCES[holeCardIsNotThis] * numDecks
+                        - cardsOut.count(holeCardIsNotThis);
+            }
+            for (int i = 0; i < SIZE; i++) {
+                int total_i = OCURRENCES[i] * numDecks - cardsOut.count(i);
+                if (i == holeCardIsNotThis || total_i < 1) {
+                    continue;
+                }
+                float probability = (float) (total_i) / total;
+                dealerHand.add(i);
+                cardsOut.add(i);
+                if (dealerHand.value() <= 21) { // Not Busted
+                    float[] next = distribution(dealerHand, cardsOut,
+                            false, states);
+                    OutcomeKernels.accumulate(result, probability, next);
+                } else {
+                    result[OUTCOME_BUST] += probability;
+                }
+                dealerHand.remove(i);
+                cardsOut.remove(i);
+            }
+        } else if (dealerHand.isBlackJack()) { // Dealer stands
+            result[OUTCOME_BLACKJACK] = 1;
+        } else {
+            result[OUTCOME_17 + value - 17] = 1;
+        }
+        states.put(key, result);
+        return result;
+    }
+
+    private long encodeShoe(CardComposition cardsOut) {
+        long code = 0;
+        for (int i = 0; i < SIZE; i++) {
+            code += mShoeWeights[i] * cardsOut.count(i);
+        }
+        return code;
+    }
+}
@@ -0,0 +1,301 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class collects the counters of every odds engine of the JVM
+ * and publishes them as an MBean named
+ * com.marioga.blackjackodds:type=EngineMetrics on the platform MBean
+ * server, where jconsole and other JMX clients can read them:
+ *
+ * - recursion nodes visited by BlackjackOddsComputer, by action
+ * - stand-cache hits and misses
+ * - durations of stand-expectation cache builds and loads
+ * - dealer distributions of derived caches, and how many of them
+ *   were reused from the cache they were derived from
+ * - rows written to the databases, and rows per second of batches
+ * - BlackjackOddsEngine.evaluate latencies, in a histogram of
+ *   power-of-two buckets of microseconds
+ *
+ * The counters are LongAdders, and the computers only add their
+ * node and cache counts once per call, so that the recursions
+ * themselves never touch shared state.
+ *
+ * @author marioga
+ *
+ */
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+public class EngineMetrics implements EngineMetricsMBean {
+    public static final String OBJECT_NAME =
+            "com.marioga.blackjackodds:type=EngineMetrics";
+    // Bucket i holds latencies below 2^(i + 1) microseconds
+    private static final int LATENCY_BUCKETS = 24;
+
+    private static final EngineMetrics sInstance = register();
+
+    private final LongAdder[] mNodes = new LongAdder[4];
+    private final LongAdder mCacheHits = new LongAdder();
+    private final LongAdder mCacheMisses = new LongAdder();
+    private final LongAdder mCacheBuilds = new LongAdder();
+    private final LongAdder mCacheBuildNanos = new LongAdder();
+    private volatile long mLastCacheBuildNanos;
+    private final LongAdder mCacheLoads = new LongAdder();
+    private final LongAdder mCacheLoadNanos = new LongAdder();
+    private volatile long mLastCacheLoadNanos;
+    private final LongAdder mDerivedDistributions = new LongAdder();
+    private final LongAdder mReusedDistributions = new LongAdder();
+    private final LongAdder mRowsWritten = new LongAdder();
+    private final LongAdder mRowsWriteNanos = new LongAdder();
+    private final AtomicLongArray mLatencies =
+            new AtomicLongArray(LATENCY_BUCKETS);
+
+    private EngineMetrics() {
+        for (int i = 0; i < mNodes.length; i++) {
+            mNodes[i] = new LongAdder();
+        }
+    }
+
+    private static EngineMetrics register() {
+        EngineMetrics metrics = new EngineMetrics();
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(
+                    metrics, new ObjectName(OBJECT_NAME));
+        } catch (JMException | SecurityException e) {
+            // The counters still work, they are just not published
+            System.out.println("Metrics not registered: " + e);
+        }
+        return metrics;
+    }
+
+    public static EngineMetrics getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * Adds recursion nodes visited while computing an action,
+     * given as one of the StrategyTable ACTION constants.
+     */
+
+    public void recordNodes(int action, long nodes) {
+        mNodes[action].add(nodes);
+    }
+
+    public void recordStandCache(long hits, long misses) {
+        mCacheHits.add(hits);
+        mCacheMisses.add(misses);
+    }
+
+    public void recordCacheBuild(long nanos) {
+        mCacheBuilds.increment();
+        mCacheBuildNanos.add(nanos);
+        mLastCacheBuildNanos = nanos;
+    }
+
+    public void recordCacheLoad(long nanos) {
+        mCacheLoads.increment();
+        mCacheLoadNanos.add(nanos);
+        mLastCacheLoadNanos = nanos;
+    }
+
+    public void recordCacheDerivation(long reusedDistributions,
+            long distributions) {
+        mReusedDistributions.add(reusedDistributions);
+        mDerivedDistributions.add(distributions);
+    }
+
+    public void recordRowsWritten(long rows, long nanos) {
+        mRowsWritten.add(rows);
+        mRowsWriteNanos.add(nanos);
+    }
+
+    public void recordQuery(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = 63 - Long.numberOfLeadingZeros(Math.max(1, micros));
+        mLatencies.incrementAndGet(Math.min(bucket, LATENCY_BUCKETS - 1));
+    }
+
+    @Override
+    public long getStandNodes() {
+        return mNodes[StrategyTable.ACTION_STAND].sum();
+    }
+
+    @Override
+    public long getHitNodes() {
+        return mNodes[StrategyTable.ACTION_HIT].sum();
+    }
+
+    @Override
+    public long getDoubleNodes() {
+        return mNodes[StrategyTable.ACTION_DOUBLE].sum();
+    }
+
+    @Override
+    public long getSplitNodes() {
+        return mNodes[StrategyTable.ACTION_SPLIT].sum();
+    }
+
+    @Override
+    public long getStandCacheHits() {
+        return mCacheHits.sum();
+    }
+
+    @Override
+    public long getStandCacheMisses() {
+        return mCacheMisses.sum();
+    }
+
+    @Override
+    public double getStandCacheHitRate() {
+        long hits = mCacheHits.sum();
+        long lookups = hits + mCacheMisses.sum();
+        return lookups == 0 ? Double.NaN : (double) hits / lookups;
+    }
+
+    @Override
+    public long getCacheBuilds() {
+        return mCacheBuilds.sum();
+    }
+
+    @Override
+    public double getCacheBuildMillis() {
+        return mCacheBuildNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getLastCacheBuildMillis() {
+        return mLastCacheBuildNanos / 1e6;
+    }
+
+    @Override
+    public long getCacheLoads() {
+        return mCacheLoads.sum();
+    }
+
+    @Override
+    public double getCacheLoadMillis() {
+        return mCacheLoadNanos.sum() / 1e6;
+    }
+
+    @Override
+    public double getLastCacheLoadMillis() {
+        return mLastCacheLoadNanos / 1e6;
+    }
+
+    @Override
+    public long getDerivedCacheDistributions() {
+        return mDerivedDistributions.sum();
+    }
+
+    @Override
+    public long getReusedCacheDistributions() {
+        return mReusedDistributions.sum();
+    }
+
+    @Override
+    public long getDBRowsWritten() {
+        return mRowsWritten.sum();
+    }
+
+    @Override
+    public double getDBRowsPerSecond() {
+        long nanos = mRowsWriteNanos.sum();
+        return nanos == 0 ? Double.NaN : mRowsWritten.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public long getQueries() {
+        long queries = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            queries += mLatencies.get(i);
+        }
+        return queries;
+    }
+
+    @Override
+    public long[] getQueryLatencyHistogram() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            histogram[i] = mLatencies.get(i);
+        }
+        return histogram;
+    }
+
+    @Override
+    public String[] getQueryLatencyBuckets() {
+        String[] buckets = new String[LATENCY_BUCKETS];
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+            buckets[i] = "< " + (2L << i) + " us";
+        }
+        buckets[LATENCY_BUCKETS - 1] = ">= " + (1L << (LATENCY_BUCKETS - 1))
+                + " us";
+        return buckets;
+    }
+
+    @Override
+    public double getQueryLatencyP50Micros() {
+        return latencyPercentile(0.5);
+    }
+
+    @Override
+    public double getQueryLatencyP99Micros() {
+        return latencyPercentile(0.99);
+    }
+
+    /*
+     * Upper bound of the bucket holding the percentile
+     */
+    private double latencyPercentile(double fraction) {
+        long[] histogram = getQueryLatencyHistogram();
+        long queries = 0;
+        for (long count : histogram) {
+            queries += count;
+        }
+        if (queries == 0) {
+            return Double.NaN;
+        }
+        long seen = 0;
+        for (int i = 0; i < LATENCY_BUCKETS - 1; i++) {
+            seen += histogram[i];
+            if (seen >= fraction * queries) {
+                return 2L << i;
+            }
+        }
+        return Double.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public void reset() {
+        for (LongAdder nodes : mNodes) {
+            nodes.reset();
+        }
+        for (LongAdder counter : new LongAdder[] { mCacheHits, mCacheMisses,
+                mCacheBuilds, mCacheBuildNanos, mCacheLoads, mCacheLoadNanos,
+                mDerivedDistributions, mReusedDistributions, mRowsWritten,
+                mRowsWriteNanos }) {
+            counter.reset();
+        }
+        mLastCacheBuildNanos = 0;
+        mLastCacheLoadNanos = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            mLatencies.set(i, 0);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "EngineMetrics[nodes=" + getStandNodes() + "/" + getHitNodes()
+                + "/" + getDoubleNodes() + "/" + getSplitNodes()
+                + ", cacheHitRate=" + getStandCacheHitRate()
+                + ", builds=" + getCacheBuilds() + ", loads="
+                + getCacheLoads() + ", rows=" + getDBRowsWritten()
+                + ", queries=" + getQueries() + ", p50="
+                + getQueryLatencyP50Micros() + "us, p99="
+                + getQueryLatencyP99Micros() + "us]";
+    }
+}
@@ -0,0 +1,63 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This interface is the JMX view of EngineMetrics, so any JMX
+ * client (jconsole, for instance) can read the counters of the
+ * odds engines running in a JVM. Durations are in milliseconds
+ * and latencies in microseconds.
+ *
+ * @author marioga
+ *
+ */
+
+public interface EngineMetricsMBean {
+    long getStandNodes();
+
+    long getHitNodes();
+
+    long getDoubleNodes();
+
+    long getSplitNodes();
+
+    long getStandCacheHits();
+
+    long getStandCacheMisses();
+
+    double getStandCacheHitRate();
+
+    long getCacheBuilds();
+
+    double getCacheBuildMillis();
+
+    double getLastCacheBuildMillis();
+
+    long getCacheLoads();
+
+    double getCacheLoadMillis();
+
+    double getLastCacheLoadMillis();
+
+    long getDerivedCacheDistributions();
+
+    long getReusedCacheDistributions();
+
+    long getDBRowsWritten();
+
+    double getDBRowsPerSecond();
+
+    long getQueries();
+
+    /**
+     * Returns the number of queries in each latency bucket,
+     * with the bounds given by getQueryLatencyBuckets.
+     */
+    long[] getQueryLatencyHistogram();
+
+    String[] getQueryLatencyBuckets();
+
+    double getQueryLatencyP50Micros();
+
+    double getQueryLatencyP99Micros();
+
+    void reset();
+}
@@ -16,11 +16,20 @@ public class HandEncoder {
     private HandEncoder(){ }
     
     public static long encodeToHashKey(int[] playerHand, int dealerCard) {
+        return 10 * encodeHand(playerHand) + dealerCard;
+    }
+
+    public static long encodeToHashKey(CardComposition playerHand,
+            int dealerCard) {
+        return 10 * playerHand.getCode() + dealerCard;
+    }
+
+    public static long encodeHand(int[] hand) {
         long sum = 0;
         for (int i = SIZE - 1; i >= 0; i--) {
-            sum = 23 * sum + playerHand[i];
+            sum = 23 * sum + hand[i];
         }
-        return 10 * sum + dealerCard;
+        return sum;
     }
 
     public static int[] getPlayerFromHashCode(long code) {
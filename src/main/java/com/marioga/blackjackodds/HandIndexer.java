@@ -0,0 +1,153 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class maps every hand with a hard value of at most 21
+ * that can be dealt from a shoe of a given number of decks to a
+ * dense index in [0, getNumHands()), and back. Hands are ranked
+ * in lexicographic order of their counts, starting with the
+ * aces. Together with the dealer upcard this gives a dense index
+ * of the (player hand, upcard) cells, so that caches of those
+ * cells can be flat float arrays. The index does not depend on
+ * the withdrawn cards; cells that cannot occur for a given shoe
+ * are simply left unused.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.Arrays;
+
+public class HandIndexer {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES = { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int MAX_HARD_SUM = 21;
+
+    private final int mNumDecks;
+    /*
+     * mOffsets[i][s][c] is the number of hands that agree with a
+     * hand on the ranks below i, which leave a hard value of s for
+     * the ranks from i on, and that have less than c cards of rank i
+     */
+    private final int[][][] mOffsets = new int[SIZE][MAX_HARD_SUM + 1][];
+    private final int mNumHands;
+
+    public HandIndexer(int numDecks) {
+        if (numDecks < 1) {
+            throw new IllegalArgumentException(
+                    "Number of decks must be positive: " + numDecks);
+        }
+        mNumDecks = numDecks;
+        // Number of ways to fill the ranks from i on within a hard value
+        int[] ways = new int[MAX_HARD_SUM + 1];
+        Arrays.fill(ways, 1);
+        for (int i = SIZE - 1; i >= 0; i--) {
+            int[] newWays = new int[MAX_HARD_SUM + 1];
+            for (int s = 0; s <= MAX_HARD_SUM; s++) {
+                int maxCount = Math.min(numDecks * OCURRENCES[i],
+                        s / VALUES[i]);
+                int[] offsets = new int[maxCount + 2];
+                for (int c = 0; c <= maxCount; c++) {
+                    offsets[c + 1] = offsets[c] + ways[s - c * VALUES[i]];
+                }
+                mOffsets[i][s] = offsets;
+                newWays[s] = offsets[maxCount + 1];
+            }
+            ways = newWays;
+        }
+        mNumHands = ways[MAX_HARD_SUM];
+    }
+
+    public int getNumDecks() {
+        return mNumDecks;
+    }
+
+    public int getNumHands() {
+        return mNumHands;
+    }
+
+    public int getNumCells() {
+        return mNumHands * SIZE;
+    }
+
+    /**
+     * This method ranks a hand.
+     * @param hand counts of each rank
+     * @return index of the hand, in [0, getNumHands())
+     */
+
+    public int getIndex(int[] hand) {
+        int index = 0;
+        int sumLeft = MAX_HARD_SUM;
+        for (int i = 0; i < SIZE; i++) {
+            int[] offsets = mOffsets[i][sumLeft];
+            if (hand[i] < 0 || hand[i] >= offsets.length - 1) {
+                throw new IllegalArgumentException("Hand cannot be indexed: "
+                        + Arrays.toString(hand));
+            }
+            index += offsets[hand[i]];
+            sumLeft -= hand[i] * VALUES[i];
+        }
+        return index;
+    }
+
+    /**
+     * This method returns the index of a (player hand, upcard) cell.
+     * @param playerHand counts of each rank of the player hand
+     * @param dealerCard rank of the dealer upcard
+     * @return index of the cell, in [0, getNumCells())
+     */
+
+    public int getIndex(int[] playerHand, int dealerCard) {
+        return getCellIndex(getIndex(playerHand), dealerCard);
+    }
+
+    public int getIndex(CardComposition playerHand, int dealerCard) {
+        return getCellIndex(getIndex(playerHand.getCounts()), dealerCard);
+    }
+
+    /**
+     * Same as above, for a hand given by its index.
+     * @param handIndex index of the player hand
+     * @param dealerCard rank of the dealer upcard
+     * @return index of the cell
+     */
+
+    public static int getCellIndex(int handIndex, int dealerCard) {
+        return SIZE * handIndex + dealerCard;
+    }
+
+    /**
+     * This method is the inverse of getIndex(int[]).
+     * @param index index of a hand
+     * @return counts of each rank of the hand
+     */
+
+    public int[] getHand(int index) {
+        if (index < 0 || index >= mNumHands) {
+            throw new IllegalArgumentException(
+                    "Hand index out of range: " + index);
+        }
+        int[] hand = new int[SIZE];
+        int sumLeft = MAX_HARD_SUM;
+        for (int i = 0; i < SIZE; i++) {
+            int[] offsets = mOffsets[i][sumLeft];
+            int count = 0;
+            while (offsets[count + 1] <= index) {
+                count++;
+            }
+            hand[i] = count;
+            index -= offsets[count];
+            sumLeft -= count * VALUES[i];
+        }
+        return hand;
+    }
+
+    public static int getDealerCard(int cellIndex) {
+        return cellIndex % SIZE;
+    }
+
+    public int[] getPlayerHand(int cellIndex) {
+        return getHand(cellIndex / SIZE);
+    }
+}
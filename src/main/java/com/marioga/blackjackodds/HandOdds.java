@@ -0,0 +1,46 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class holds the expected returns of the actions
+ * available to a player hand against a dealer upcard.
+ * Actions that are not available are reported as NaN.
+ * 
+ * @author marioga
+ *
+ */
+
+public final class HandOdds {
+    private final float mStand;
+    private final float mHit;
+    private final float mDouble;
+    private final float mSplit;
+
+    public HandOdds(float stand, float hit, float doubleDown, float split) {
+        mStand = stand;
+        mHit = hit;
+        mDouble = doubleDown;
+        mSplit = split;
+    }
+
+    public float getStand() {
+        return mStand;
+    }
+
+    public float getHit() {
+        return mHit;
+    }
+
+    public float getDouble() {
+        return mDouble;
+    }
+
+    public float getSplit() {
+        return mSplit;
+    }
+
+    @Override
+    public String toString() {
+        return "HandOdds[stand=" + mStand + ", hit=" + mHit
+                + ", double=" + mDouble + ", split=" + mSplit + "]";
+    }
+}
@@ -9,6 +9,7 @@ package com.marioga.blackjackodds;
 
 public class Helper {
     private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES = { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
     private static final int SIZE = 10;
     
     public static int valueHand(int[] hand) {
@@ -53,4 +54,15 @@ public class Helper {
     public static boolean isBlackJack(int[] hand) {
         return numberOfCards(hand) == 2 && valueHand(hand) == 21;
     }
+    
+    public static boolean fitsInShoe(int numDecks, int[] withdrawnCards,
+            int[] playerHand, int dealerCard) {
+        for (int i = 0; i < SIZE; i++) {
+            if (playerHand[i] + withdrawnCards[i] + (i == dealerCard ? 1 : 0)
+                    > numDecks * OCURRENCES[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 }
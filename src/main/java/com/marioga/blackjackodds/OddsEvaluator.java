@@ -0,0 +1,65 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This interface answers expected-return queries for one choice
+ * of rules and withdrawn cards. Implementations must be safe to
+ * call from many threads at once.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.List;
+
+public interface OddsEvaluator {
+    BlackjackTableRules getRules();
+
+    int[] getWithdrawnCards();
+
+    /**
+     * This method computes the expected return of every action
+     * available to the player hand.
+     * @param playerHand player hand
+     * @param dealerUpcard rank of the dealer upcard
+     * @return expected returns, NaN for unavailable actions
+     */
+    HandOdds evaluate(int[] playerHand, int dealerUpcard);
+
+    /**
+     * This method computes the expected returns of many player
+     * hands against one upcard. Implementations may share work
+     * between the hands; by default they are evaluated one by one.
+     * @param playerHands player hands
+     * @param dealerUpcard rank of the dealer upcard
+     * @return expected returns of each hand, in the order of the
+     * list; null for the hands that do not fit in the shoe
+     */
+    default HandOdds[] evaluateBatch(List<int[]> playerHands,
+            int dealerUpcard) {
+        int numDecks = getRules().getNumDecks();
+        int[] withdrawnCards = getWithdrawnCards();
+        HandOdds[] odds = new HandOdds[playerHands.size()];
+        for (int i = 0; i < odds.length; i++) {
+            int[] playerHand = playerHands.get(i);
+            if (Helper.fitsInShoe(numDecks, withdrawnCards, playerHand,
+                    dealerUpcard)) {
+                odds[i] = evaluate(playerHand, dealerUpcard);
+            }
+        }
+        return odds;
+    }
+
+    /**
+     * Same as above, for several upcards.
+     * @return matrix of expected returns, indexed by upcard (in
+     * the order of the array) and then by hand
+     */
+    default HandOdds[][] evaluateBatch(List<int[]> playerHands,
+            int[] dealerUpcards) {
+        HandOdds[][] odds = new HandOdds[dealerUpcards.length][];
+        for (int j = 0; j < dealerUpcards.length; j++) {
+            odds[j] = evaluateBatch(playerHands, dealerUpcards[j]);
+        }
+        return odds;
+    }
+}
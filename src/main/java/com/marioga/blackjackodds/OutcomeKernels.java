@@ -0,0 +1,40 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class holds the arithmetic on dealer outcome vectors that
+ * runs at every node of the dealer tree and for every stand value.
+ * Outcome vectors are NUM_OUTCOMES floats long.
+ *
+ * @author marioga
+ *
+ */
+
+final class OutcomeKernels {
+    private OutcomeKernels() {}
+
+    /**
+     * Adds probability * next to result, outcome by outcome.
+     */
+    static void accumulate(float[] result, float probability, float[] next) {
+        for (int j = 0; j < DealerOutcomeEngine.NUM_OUTCOMES; j++) {
+            result[j] += probability * next[j];
+        }
+    }
+
+    /**
+     * Returns the sum of outcomes times payoffs over every outcome.
+     */
+    static float dot(float[] outcomes, float[] payoffs) {
+        // Bust and blackjack first, then 17 to 21, as the stand
+        // expectation has always been summed
+        float sum = outcomes[DealerOutcomeEngine.OUTCOME_BUST]
+                * payoffs[DealerOutcomeEngine.OUTCOME_BUST]
+                + outcomes[DealerOutcomeEngine.OUTCOME_BLACKJACK]
+                * payoffs[DealerOutcomeEngine.OUTCOME_BLACKJACK];
+        for (int i = DealerOutcomeEngine.OUTCOME_17;
+                i <= DealerOutcomeEngine.OUTCOME_21; i++) {
+            sum += outcomes[i] * payoffs[i];
+        }
+        return sum;
+    }
+}
@@ -3,57 +3,181 @@ package com.marioga.blackjackodds;
 /**
  * This class generates all possible player hands in a game
  * of Blackjack, given the number of decks and a choice of
- * withdrawn cards.
- * 
+ * withdrawn cards. Hands have at least two cards and a hard
+ * value of at most 21. They are enumerated lazily, in
+ * depth-first order of the ranks added to the hand, and the
+ * enumeration splits into independent subtrees for
+ * parallel streams. The generator keeps no state between
+ * calls, so it can be used from several threads at once.
+ *
  * @author marioga
  *
  */
 
-import java.util.ArrayList;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class PlayerHandGenerator {
     private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
     private static final int[] OCURRENCES = { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
     private static final int SIZE = 10;
-    
-    private static ArrayList<int[]> sPlayerHands = new ArrayList<>();
+    // A hand with a hard value of at most 21 has at most 21 cards
+    private static final int MAX_CARDS = 21;
 
     private PlayerHandGenerator() {}
 
-    private static int softValue(int[] hand) {
-        int sum = 0;
-        for (int i = 0; i < SIZE; i++) {
-            sum += hand[i] * VALUES[i];
-        }
-        return sum;
+    public static Iterable<int[]> getHands(int numDecks, int[] withdrawnCards) {
+        return () -> Spliterators.iterator(
+                spliterator(numDecks, withdrawnCards, false));
+    }
 
+    public static Stream<int[]> stream(int numDecks, int[] withdrawnCards) {
+        return stream(numDecks, withdrawnCards, false);
     }
 
-    private static void hands(int numDecks, int[] withdrawnCards, int fillingPosition,
-            int arrayListPos) {
-        for (int i = fillingPosition; i < SIZE; i++) {
-            int[] tempArray = sPlayerHands.get(arrayListPos).clone();
-            if (softValue(tempArray) + VALUES[i] <= 21
-                    && numDecks * OCURRENCES[i] >= withdrawnCards[i] + tempArray[i] + 1) {
-                tempArray[i] += 1;
-                sPlayerHands.add(tempArray);
-                hands(numDecks, withdrawnCards, i, sPlayerHands.size() - 1);
-                if (arrayListPos == 0) {
-                    // Remove hands with only one card
-                    sPlayerHands.remove(tempArray);
+    /**
+     * This method returns the player hands as a stream.
+     * @param numDecks number of decks
+     * @param withdrawnCards withdrawn cards
+     * @param reuseHandBuffer if true, every hand is the same array,
+     * which changes as the stream advances; consumers must copy
+     * the hands they keep
+     * @return stream of player hands
+     */
+
+    public static Stream<int[]> stream(int numDecks, int[] withdrawnCards,
+            boolean reuseHandBuffer) {
+        return StreamSupport.stream(
+                spliterator(numDecks, withdrawnCards, reuseHandBuffer), false);
+    }
+
+    public static Spliterator<int[]> spliterator(int numDecks,
+            int[] withdrawnCards, boolean reuseHandBuffer) {
+        return new HandSpliterator(numDecks, withdrawnCards.clone(),
+                reuseHandBuffer);
+    }
+
+    /**
+     * Walks the tree of hands, where the children of a hand
+     * are obtained by adding a card of rank at least as high
+     * as the last one added. Level d of the walk holds the next
+     * rank to add to the hand of d cards; splitting hands half
+     * of the remaining ranks of the lowest level over to a new
+     * spliterator, which starts from the same hand.
+     */
+    private static final class HandSpliterator implements Spliterator<int[]> {
+        private final int mNumDecks;
+        private final int[] mWithdrawnCards;
+        private final boolean mReuseHandBuffer;
+
+        private final int[] mHand = new int[SIZE];
+        private int mHardSum;
+        // Rank of the card that was added to reach each level
+        private final int[] mAddedRank = new int[MAX_CARDS + 2];
+        private final int[] mNextRank = new int[MAX_CARDS + 2];
+        private final int[] mEndRank = new int[MAX_CARDS + 2];
+        private final int mBase;
+        private int mTop;
+        private long mEstimatedSize = Long.MAX_VALUE;
+
+        HandSpliterator(int numDecks, int[] withdrawnCards,
+                boolean reuseHandBuffer) {
+            this(numDecks, withdrawnCards, reuseHandBuffer, 0);
+            mNextRank[0] = 0;
+            mEndRank[0] = SIZE;
+        }
+
+        private HandSpliterator(int numDecks, int[] withdrawnCards,
+                boolean reuseHandBuffer, int base) {
+            mNumDecks = numDecks;
+            mWithdrawnCards = withdrawnCards;
+            mReuseHandBuffer = reuseHandBuffer;
+            mBase = base;
+            mTop = base;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super int[]> action) {
+            while (mTop >= mBase) {
+                int level = mTop;
+                int rank = mNextRank[level];
+                if (rank >= mEndRank[level]) {
+                    // Every child of this hand has been visited
+                    if (level > mBase) {
+                        mHand[mAddedRank[level]]--;
+                        mHardSum -= VALUES[mAddedRank[level]];
+                    }
+                    mTop--;
+                    continue;
+                }
+                mNextRank[level] = rank + 1;
+                if (mHardSum + VALUES[rank] > 21) {
+                    // Higher ranks do not fit either
+                    mNextRank[level] = mEndRank[level];
+                    continue;
+                }
+                if (mNumDecks * OCURRENCES[rank]
+                        < mWithdrawnCards[rank] + mHand[rank] + 1) {
+                    continue;
+                }
+                mHand[rank]++;
+                mHardSum += VALUES[rank];
+                mTop = level + 1;
+                mAddedRank[mTop] = rank;
+                mNextRank[mTop] = rank;
+                mEndRank[mTop] = SIZE;
+                if (mTop >= 2) {
+                    action.accept(mReuseHandBuffer ? mHand : mHand.clone());
+                    return true;
                 }
-            } else {
-                hands(numDecks, withdrawnCards, i + 1, sPlayerHands.size() - 1);
-                break;
             }
+            return false;
         }
-    }
 
-    public static Iterable<int[]> getHands(int numDecks, int[] withdrawnCards) {
-        sPlayerHands = new ArrayList<>();
-        sPlayerHands.add(new int[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 });
-        hands(numDecks, withdrawnCards, 0, 0);
-        sPlayerHands.remove(0); // Remove initial empty array
-        return sPlayerHands;
+        @Override
+        public Spliterator<int[]> trySplit() {
+            for (int level = mBase; level <= mTop; level++) {
+                int remaining = mEndRank[level] - mNextRank[level];
+                if (remaining < 2) {
+                    continue;
+                }
+                int middle = mNextRank[level] + remaining / 2;
+                HandSpliterator split = new HandSpliterator(mNumDecks,
+                        mWithdrawnCards, mReuseHandBuffer, level);
+                // The new spliterator starts from the hand at this level
+                System.arraycopy(mHand, 0, split.mHand, 0, SIZE);
+                split.mHardSum = mHardSum;
+                for (int l = level + 1; l <= mTop; l++) {
+                    split.mHand[mAddedRank[l]]--;
+                    split.mHardSum -= VALUES[mAddedRank[l]];
+                }
+                split.mNextRank[level] = middle;
+                split.mEndRank[level] = mEndRank[level];
+                mEndRank[level] = middle;
+                mEstimatedSize >>>= 1;
+                split.mEstimatedSize = mEstimatedSize;
+                return split;
+            }
+            return null;
+        }
+
+        @Override
+        public long estimateSize() {
+            return mEstimatedSize;
+        }
+
+        @Override
+        public int characteristics() {
+            // Not ORDERED: the split part holds hands that come
+            // after some of the ones left in this spliterator
+            int characteristics = NONNULL | IMMUTABLE;
+            if (!mReuseHandBuffer) {
+                characteristics |= DISTINCT;
+            }
+            return characteristics;
+        }
     }
 }
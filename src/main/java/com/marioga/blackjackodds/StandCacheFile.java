@@ -0,0 +1,142 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class reads and writes the stand-expectation cache of
+ * one (rules, withdrawn cards) pair as a compact binary file.
+ * The file is opened through FileChannel.map, so lookups read
+ * straight from the mapped buffer and several JVMs on one host
+ * share the same pages. The layout is:
+ *
+ * - a header with a magic number, the format version, the rules
+ *   fingerprint (number of decks, soft 17 rule and blackjack
+ *   payout, the only rules that stand values depend on), the
+ *   withdrawn cards and the number of entries N
+ * - N stand values, in the order of the HandIndexer cell
+ *   indices for the number of decks; cells that cannot occur
+ *   for the withdrawn cards hold NaN
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public class StandCacheFile {
+    private static final int MAGIC = 0x424A5343; // "BJSC"
+    private static final int VERSION = 2;
+    private static final int SIZE = 10;
+    private static final int HEADER_SIZE = 4 * (2 + 4 + SIZE + 1);
+
+    private final MappedByteBuffer mBuffer;
+    private final int mNumEntries;
+
+    private StandCacheFile(MappedByteBuffer buffer, int numEntries) {
+        mBuffer = buffer;
+        mNumEntries = numEntries;
+    }
+
+    public int size() {
+        return mNumEntries;
+    }
+
+    /**
+     * Returns the number of bytes mapped from the file.
+     */
+
+    public long getMappedBytes() {
+        return mBuffer.capacity();
+    }
+
+    /**
+     * Returns the stand value of a HandIndexer cell,
+     * or NaN if the cell cannot occur.
+     */
+
+    public float getValue(int cellIndex) {
+        return mBuffer.getFloat(HEADER_SIZE + 4 * cellIndex);
+    }
+
+    /**
+     * This method maps a cache file into memory.
+     * @return the mapped cache, or null if the file does not exist
+     * or was written for other rules or withdrawn cards
+     */
+
+    public static StandCacheFile open(File file, BlackjackTableRules rules,
+            int[] withdrawnCards) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ)) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(
+                    FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            ByteBuffer expected = ByteBuffer.allocate(HEADER_SIZE - 4);
+            putHeader(expected, rules, withdrawnCards);
+            for (int i = 0; i < expected.capacity(); i++) {
+                if (buffer.get(i) != expected.get(i)) {
+                    return null;
+                }
+            }
+            int numEntries = buffer.getInt(HEADER_SIZE - 4);
+            if (numEntries != new HandIndexer(rules.getNumDecks())
+                    .getNumCells()
+                    || channel.size() != HEADER_SIZE + 4L * numEntries) {
+                return null;
+            }
+            return new StandCacheFile(buffer, numEntries);
+        }
+    }
+
+    /**
+     * This method writes the cached stand values to a new file,
+     * replacing any existing one only once it is complete.
+     */
+
+    public static void write(File file, BlackjackTableRules rules,
+            int[] withdrawnCards, float[] standValues)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(
+                HEADER_SIZE + 4 * standValues.length);
+        putHeader(buffer, rules, withdrawnCards);
+        buffer.putInt(standValues.length);
+        for (float standValue : standValues) {
+            buffer.putFloat(standValue);
+        }
+        buffer.flip();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void putHeader(ByteBuffer buffer,
+            BlackjackTableRules rules, int[] withdrawnCards) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(rules.getNumDecks());
+        buffer.putInt(rules.isDealerStandsSoft17() ? 1 : 0);
+        buffer.putFloat(rules.getBlackjackPays());
+        buffer.putInt(0); // Reserved
+        for (int i = 0; i < SIZE; i++) {
+            buffer.putInt(withdrawnCards[i]);
+        }
+    }
+}
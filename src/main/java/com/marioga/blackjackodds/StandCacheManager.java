@@ -0,0 +1,359 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class holds the stand-expectation caches of many (rules,
+ * withdrawn cards) pairs under a budget of bytes, counting both
+ * heap arrays and mapped cache files. A missing cache is loaded
+ * once, however many threads ask for it at the same time; the
+ * others wait for the same load. Once the budget is exceeded,
+ * resident caches are evicted either least recently used first,
+ * or cheapest to rebuild first (by the time their load took).
+ * Every cache returned by getCache is held until it is given
+ * back to release; an evicted cache stays valid while it is held,
+ * and is closed (see StandExpectationCache.close) once it is not,
+ * so that lazy caches give back their database connection and
+ * writer thread. The size of a cache is measured again on every
+ * access, since lazy caches grow as they are used. An eviction
+ * listener may drop whatever its owner keeps built on top of an
+ * evicted cache.
+ * Caches are keyed on the rules fingerprint (see
+ * BlackjackTableRules.getStandFingerprint), so rules that only
+ * differ in rules the stand values do not depend on share one.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+
+public class StandCacheManager {
+    public enum EvictionPolicy {
+        LEAST_RECENTLY_USED,
+        CHEAPEST_TO_REBUILD
+    }
+
+    private final long mByteBudget;
+    private final EvictionPolicy mPolicy;
+    private final BiFunction<BlackjackTableRules, int[],
+            StandExpectationCache> mLoader;
+    private final Consumer<StandExpectationCache> mEvictionListener;
+
+    private final Map<String, CompletableFuture<Entry>> mEntries =
+            new ConcurrentHashMap<>();
+    // Entries not closed yet, evicted or not, by their cache;
+    // guarded by this manager, as are the holders of the entries
+    private final Map<StandExpectationCache, Entry> mOpenEntries =
+            new IdentityHashMap<>();
+    // Incremented on every access, to order entries by recency
+    private final AtomicLong mClock = new AtomicLong();
+    private final AtomicLong mResidentBytes = new AtomicLong();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mEvictions = new AtomicLong();
+
+    public StandCacheManager(long byteBudget, EvictionPolicy policy,
+            BiFunction<BlackjackTableRules, int[],
+                    StandExpectationCache> loader) {
+        this(byteBudget, policy, loader, null);
+    }
+
+    /**
+     * @param byteBudget number of bytes the resident caches may hold
+     * @param policy which caches to evict first
+     * @param loader builds (or opens) the cache of a pair of rules
+     * and withdrawn cards
+     * @param evictionListener called with every evicted cache, on
+     * the thread that evicted it and before it is closed; may be null
+     */
+    public StandCacheManager(long byteBudget, EvictionPolicy policy,
+            BiFunction<BlackjackTableRules, int[],
+                    StandExpectationCache> loader,
+            Consumer<StandExpectationCache> evictionListener) {
+        if (byteBudget < 1) {
+            throw new IllegalArgumentException(
+                    "Byte budget must be positive: " + byteBudget);
+        }
+        mByteBudget = byteBudget;
+        mPolicy = policy;
+        mLoader = loader;
+        mEvictionListener = evictionListener;
+    }
+
+    /**
+     * This method returns the cache of a pair of rules and withdrawn
+     * cards, loading it if it is not resident. The caller holds the
+     * cache until it calls release.
+     * @param rules rules of the game
+     * @param withdrawnCards withdrawn cards
+     * @return the stand-expectation cache
+     */
+
+    public StandExpectationCache getCache(BlackjackTableRules rules,
+            int[] withdrawnCards) {
+        String key = rules.getStandFingerprint()
+                + Arrays.toString(withdrawnCards);
+        while (true) {
+            CompletableFuture<Entry> entry = mEntries.get(key);
+            if (entry == null) {
+                CompletableFuture<Entry> newEntry = new CompletableFuture<>();
+                entry = mEntries.putIfAbsent(key, newEntry);
+                if (entry == null) {
+                    mMisses.incrementAndGet();
+                    // Loaded entries start held by the loading thread
+                    load(key, newEntry, rules, withdrawnCards.clone());
+                    return join(newEntry).mCache;
+                }
+            }
+            Entry resident = join(entry);
+            if (!hold(resident)) {
+                // Evicted and closed meanwhile, so look it up again
+                continue;
+            }
+            mHits.incrementAndGet();
+            resident.mLastAccess = mClock.incrementAndGet();
+            if (resident.mCache.getSizeInBytes() != resident.mBytes) {
+                evicted(resize(key, entry));
+            }
+            return resident.mCache;
+        }
+    }
+
+    /**
+     * This method gives back a cache returned by getCache, closing
+     * it if it was evicted and nobody else holds it.
+     * @param cache the cache
+     * @throws IllegalArgumentException if the cache is not held
+     */
+
+    public void release(StandExpectationCache cache) {
+        synchronized (this) {
+            Entry entry = mOpenEntries.get(cache);
+            if (entry == null || entry.mHolders == 0) {
+                throw new IllegalArgumentException("Cache is not held");
+            }
+            entry.mHolders--;
+            if (entry.mHolders > 0 || !entry.mEvicted) {
+                return;
+            }
+            mOpenEntries.remove(cache);
+        }
+        close(cache);
+    }
+
+    /**
+     * Returns whether a held cache was evicted, in which case the
+     * eviction listener has already been called for it.
+     */
+
+    public synchronized boolean isEvicted(StandExpectationCache cache) {
+        Entry entry = mOpenEntries.get(cache);
+        return entry == null || entry.mEvicted;
+    }
+
+    private synchronized boolean hold(Entry entry) {
+        if (!mOpenEntries.containsKey(entry.mCache)) {
+            return false;
+        }
+        entry.mHolders++;
+        return true;
+    }
+
+    private void load(String key, CompletableFuture<Entry> newEntry,
+            BlackjackTableRules rules, int[] withdrawnCards) {
+        Entry loaded;
+        try {
+            long start = System.nanoTime();
+            StandExpectationCache cache = mLoader.apply(rules,
+                    withdrawnCards);
+            loaded = new Entry(cache, System.nanoTime() - start);
+            loaded.mBytes = cache.getSizeInBytes();
+        } catch (Throwable e) {
+            // Let a later request try again; errors are reported
+            // too, or the threads waiting for the load would hang
+            mEntries.remove(key, newEntry);
+            newEntry.completeExceptionally(e);
+            return;
+        }
+        loaded.mLastAccess = mClock.incrementAndGet();
+        loaded.mHolders = 1;
+        synchronized (this) {
+            mOpenEntries.put(loaded.mCache, loaded);
+        }
+        mResidentBytes.addAndGet(loaded.mBytes);
+        newEntry.complete(loaded);
+        evicted(evict(newEntry));
+    }
+
+    /*
+     * Counts the new size of a resident entry against the
+     * budget, unless it was evicted meanwhile, and returns the
+     * evicted entries
+     */
+    private synchronized List<Entry> resize(String key,
+            CompletableFuture<Entry> entry) {
+        if (mEntries.get(key) != entry) {
+            return List.of();
+        }
+        Entry resident = entry.join();
+        long bytes = resident.mCache.getSizeInBytes();
+        mResidentBytes.addAndGet(bytes - resident.mBytes);
+        resident.mBytes = bytes;
+        return evict(entry);
+    }
+
+    /*
+     * Evicts resident entries other than the one just loaded
+     * until the resident caches fit in the budget, and returns
+     * the evicted entries, which the caller reports (and closes
+     * if nobody holds them) once it leaves the lock
+     */
+    private synchronized List<Entry> evict(CompletableFuture<Entry> keep) {
+        List<Entry> victims = new ArrayList<>();
+        while (mResidentBytes.get() > mByteBudget) {
+            String victimKey = null;
+            Entry victim = null;
+            for (Map.Entry<String, CompletableFuture<Entry>> candidate
+                    : mEntries.entrySet()) {
+                CompletableFuture<Entry> future = candidate.getValue();
+                if (future == keep || !future.isDone()
+                        || future.isCompletedExceptionally()) {
+                    // Loads in flight are not resident yet
+                    continue;
+                }
+                Entry entry = future.join();
+                if (victim == null || isBetterVictim(entry, victim)) {
+                    victimKey = candidate.getKey();
+                    victim = entry;
+                }
+            }
+            if (victim == null) {
+                break;
+            }
+            mEntries.remove(victimKey);
+            mResidentBytes.addAndGet(-victim.mBytes);
+            mEvictions.incrementAndGet();
+            victim.mEvicted = true;
+            if (victim.mHolders == 0) {
+                mOpenEntries.remove(victim.mCache);
+                victim.mUnheld = true;
+            }
+            victims.add(victim);
+        }
+        return victims;
+    }
+
+    private void evicted(List<Entry> victims) {
+        for (Entry victim : victims) {
+            if (mEvictionListener != null) {
+                mEvictionListener.accept(victim.mCache);
+            }
+            if (victim.mUnheld) {
+                close(victim.mCache);
+            }
+        }
+    }
+
+    /*
+     * A cache that fails to close is reported without failing
+     * the caller, whose own cache is fine
+     */
+    private static void close(StandExpectationCache cache) {
+        try {
+            cache.close();
+        } catch (RuntimeException e) {
+            System.err.println("Could not close an evicted cache: "
+                    + e.getClass().getName() + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isBetterVictim(Entry entry, Entry victim) {
+        if (mPolicy == EvictionPolicy.CHEAPEST_TO_REBUILD
+                && entry.mLoadNanos != victim.mLoadNanos) {
+            return entry.mLoadNanos < victim.mLoadNanos;
+        }
+        return entry.mLastAccess < victim.mLastAccess;
+    }
+
+    private static Entry join(CompletableFuture<Entry> entry) {
+        try {
+            return entry.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public long getByteBudget() {
+        return mByteBudget;
+    }
+
+    public long getResidentBytes() {
+        return mResidentBytes.get();
+    }
+
+    public int getResidentCaches() {
+        int resident = 0;
+        for (CompletableFuture<Entry> entry : mEntries.values()) {
+            if (entry.isDone() && !entry.isCompletedExceptionally()) {
+                resident++;
+            }
+        }
+        return resident;
+    }
+
+    public long getHitCount() {
+        return mHits.get();
+    }
+
+    public long getMissCount() {
+        return mMisses.get();
+    }
+
+    public long getEvictionCount() {
+        return mEvictions.get();
+    }
+
+    @Override
+    public String toString() {
+        return "StandCacheManager[resident=" + getResidentCaches()
+                + ", bytes=" + getResidentBytes() + "/" + mByteBudget
+                + ", hits=" + getHitCount() + ", misses=" + getMissCount()
+                + ", evictions=" + getEvictionCount() + "]";
+    }
+
+    private static final class Entry {
+        private final StandExpectationCache mCache;
+        private final long mLoadNanos;
+        // Size counted in the resident bytes
+        private volatile long mBytes;
+        private volatile long mLastAccess;
+        // Guarded by the manager
+        private int mHolders;
+        private boolean mEvicted;
+        // Evicted while nobody held it, so the evicting thread closes it
+        private boolean mUnheld;
+
+        Entry(StandExpectationCache cache, long loadNanos) {
+            mCache = cache;
+            mLoadNanos = loadNanos;
+        }
+    }
+}
@@ -5,178 +5,804 @@ package com.marioga.blackjackodds;
  * returns after stand. This representation is useful
  * to compute hit, double and split expectation values.
  * Upon creation, it attempts to load the cached values from
- * the database cacheDB/stand_odds.db and, if this fails, 
+ * the database cacheDB/stand_odds.db (or the file named by the
+ * system property DB_FILE_PROPERTY) and, if this fails, 
  * it builds the cache from scratch and saves it in
- * said database
+ * said database. The database holds one row per stand value,
+ * keyed by (rules id, composition id, hand index), where the
+ * rules and the compositions (withdrawn cards) get their ids
+ * from two small lookup tables and the hand index is the
+ * HandIndexer cell, so a new composition is an append and
+ * loading one is a range scan of the primary key.
+ * The cache can be built on several threads
+ * by passing a parallelism level to the constructor.
+ * Alternatively, the cache can be kept in a memory-mapped
+ * binary file (see StandCacheFile) instead of the database.
+ * When the shoe changes by a few cards, the cache for the new
+ * shoe can be derived from the current one (see deriveCache).
+ * A lazy cache (see createLazy) starts empty and computes each
+ * stand value the first time it is asked for; it holds a database
+ * connection and a writer thread until it is closed. A write that
+ * fails on that thread does not stop the program, unlike the
+ * other database errors; it fails the next flush or close instead.
  * 
  * @author marioga
  *
  */
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.sql.Connection;
-import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.HashMap;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
-public class StandExpectationCache {
+public class StandExpectationCache implements AutoCloseable {
+    public static final String DB_FILE_PROPERTY =
+            "blackjackodds.standCacheDB";
+    private static final String DEFAULT_DB_FILE = "cacheDB/stand_odds.db";
     private static final int[] OCURRENCES = 
         { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
     private static final int SIZE = 10;
+    // Number of player hands below which a task is not forked
+    private static final int HANDS_PER_TASK = 64;
+    // Rough heap cost of a memoized dealer distribution: the array,
+    // the boxed key and the map node
+    private static final int DISTRIBUTION_BYTES = 112;
+    // Locks guarding the cells of a lazy cache, by cell modulo
+    private static final int LAZY_LOCKS = 64;
 
     private BlackjackTableRules mRules;
     private int[] mWithdrawnCards;
+    private int mParallelism;
+    // Rows per JDBC batch when storing stand values
+    private int mBatchSize = BatchedOddsWriter.DEFAULT_BATCH_SIZE;
 
-    private Map<Long, Float> mCachedStandValues = new HashMap<Long, Float>();
+    private HandIndexer mIndexer;
+    // Stand values by HandIndexer cell, NaN for missing cells
+    private float[] mCachedStandValues;
+    private StandCacheFile mCacheFile;
+    // Dealer outcome distributions of the computed stand values;
+    // only kept after the cache is built by lazy caches, which keep
+    // computing values, and by caches derived with
+    // keepDistributions, so that their own derived caches can reuse
+    // them
+    private Map<Long, float[]> mDealerDistributions =
+            new ConcurrentHashMap<Long, float[]>();
+    private Map<Long, float[]> mPreviousDistributions;
+    private final AtomicLong mReusedDistributions = new AtomicLong();
+
+    private static final String[] SCHEMA = {
+        // Only the rules that stand values depend on
+        "CREATE TABLE IF NOT EXISTS Rules"
+                + " (RulesID INTEGER PRIMARY KEY,"
+                + " NumDecks INTEGER NOT NULL,"
+                + " DealerStandsSoft17 INTEGER NOT NULL,"
+                + " BlackjackPays REAL NOT NULL,"
+                + " UNIQUE (NumDecks, DealerStandsSoft17, BlackjackPays))",
+        "CREATE TABLE IF NOT EXISTS Compositions"
+                + " (CompositionID INTEGER PRIMARY KEY,"
+                + " WithdrawnCards TEXT NOT NULL UNIQUE)",
+        "CREATE TABLE IF NOT EXISTS StandValues"
+                + " (RulesID INTEGER NOT NULL,"
+                + " CompositionID INTEGER NOT NULL,"
+                + " HandIndex INTEGER NOT NULL,"
+                + " Odds REAL NOT NULL,"
+                + " PRIMARY KEY (RulesID, CompositionID, HandIndex))"
+                + " WITHOUT ROWID"
+    };
 
     private Connection mDBConnection;
-    private Statement mStatement;
-    private String mTableName;
-    private String mColName;
+    private long mRulesId;
+    private long mCompositionId;
+
+    // Only set for lazy caches
+    private Object[] mCellLocks;
+    // Engines not computing a value at the moment; each one
+    // memoizes the dealer hands of the shoes it has seen
+    private Queue<DealerOutcomeEngine> mLazyEngines;
+    // Lazy values waiting to be stored, packed as cell and float bits
+    private final ConcurrentLinkedQueue<Long> mPendingValues =
+            new ConcurrentLinkedQueue<Long>();
+    private final AtomicBoolean mWriteScheduled = new AtomicBoolean();
+    // Null once the cache is closed
+    private volatile ExecutorService mBackgroundWriter;
+    // First write failure not reported yet
+    private final AtomicReference<Exception> mWriteFailure =
+            new AtomicReference<Exception>();
 
     public StandExpectationCache(BlackjackTableRules rules,
             int[] withdrawnCards) {
+        this(rules, withdrawnCards, 1);
+    }
+
+    public StandExpectationCache(BlackjackTableRules rules,
+            int[] withdrawnCards, int parallelism) {
+        this(rules, withdrawnCards, parallelism,
+                BatchedOddsWriter.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param rules rules of the game
+     * @param withdrawnCards withdrawn cards
+     * @param parallelism number of threads building the cache
+     * @param batchSize rows per JDBC batch when storing the cache
+     */
+
+    public StandExpectationCache(BlackjackTableRules rules,
+            int[] withdrawnCards, int parallelism, int batchSize) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        checkBatchSize(batchSize);
         mRules = rules;
         mWithdrawnCards = withdrawnCards;
+        mParallelism = parallelism;
+        mBatchSize = batchSize;
+        allocateCache(new HandIndexer(rules.getNumDecks()));
         initializeCache();
+        mDealerDistributions = null;
+    }
+
+    /**
+     * This constructor keeps the cache in a StandCacheFile, building
+     * the file if it does not exist.
+     * @throws UncheckedIOException if the file cannot be read or
+     * written
+     */
+
+    public StandExpectationCache(BlackjackTableRules rules,
+            int[] withdrawnCards, File cacheFile, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        mRules = rules;
+        mWithdrawnCards = withdrawnCards;
+        mParallelism = parallelism;
+        allocateCache(new HandIndexer(rules.getNumDecks()));
+        initializeFileCache(cacheFile);
+        mDealerDistributions = null;
+    }
+
+    private StandExpectationCache(BlackjackTableRules rules,
+            int[] withdrawnCards, boolean persist, int batchSize) {
+        checkBatchSize(batchSize);
+        mRules = rules;
+        mWithdrawnCards = withdrawnCards.clone();
+        mParallelism = 1;
+        mBatchSize = batchSize;
+        allocateCache(new HandIndexer(rules.getNumDecks()));
+        mCellLocks = new Object[LAZY_LOCKS];
+        for (int i = 0; i < LAZY_LOCKS; i++) {
+            mCellLocks[i] = new Object();
+        }
+        mLazyEngines = new ConcurrentLinkedQueue<DealerOutcomeEngine>();
+        if (persist) {
+            long start = System.nanoTime();
+            try {
+                openDB();
+                loadStoredValues();
+                mDBConnection.commit();
+            } catch (ClassNotFoundException | SQLException e) {
+                handleDBException(e);
+            }
+            EngineMetrics.getInstance().recordCacheLoad(
+                    System.nanoTime() - start);
+            // The connection is only used by the writer from now on
+            mBackgroundWriter = Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "stand-cache-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * This method creates a lazy cache, which is ready at once and
+     * computes the stand value of a cell the first time it is asked
+     * for, so only the cells actually used are ever computed. Each
+     * cell is computed once, however many threads ask for it.
+     * @param rules rules of the game
+     * @param withdrawnCards withdrawn cards
+     * @param persist whether to load the values already stored in
+     * the database, and to store newly computed ones into it on a
+     * background thread
+     * @return the lazy cache
+     */
+
+    public static StandExpectationCache createLazy(BlackjackTableRules rules,
+            int[] withdrawnCards, boolean persist) {
+        return createLazy(rules, withdrawnCards, persist,
+                BatchedOddsWriter.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * Same as above, storing the values in JDBC batches of the
+     * given number of rows.
+     */
+
+    public static StandExpectationCache createLazy(BlackjackTableRules rules,
+            int[] withdrawnCards, boolean persist, int batchSize) {
+        return new StandExpectationCache(rules, withdrawnCards, persist,
+                batchSize);
+    }
+
+    private static void checkBatchSize(int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException(
+                    "Batch size must be positive: " + batchSize);
+        }
+    }
+
+    private StandExpectationCache(StandExpectationCache previous,
+            int[] withdrawnCards, int parallelism,
+            boolean keepDistributions) {
+        mRules = previous.mRules;
+        mWithdrawnCards = withdrawnCards.clone();
+        mParallelism = parallelism;
+        allocateCache(previous.mIndexer);
+        mPreviousDistributions = previous.mDealerDistributions;
+        long start = System.nanoTime();
+        computeAllStandValues();
+        EngineMetrics.getInstance().recordCacheBuild(
+                System.nanoTime() - start);
+        mPreviousDistributions = null;
+        EngineMetrics.getInstance().recordCacheDerivation(
+                mReusedDistributions.get(), mDealerDistributions.size());
+        if (!keepDistributions) {
+            mDealerDistributions = null;
+        }
+    }
+
+    private void allocateCache(HandIndexer indexer) {
+        mIndexer = indexer;
+        mCachedStandValues = new float[mIndexer.getNumCells()];
+        Arrays.fill(mCachedStandValues, Float.NaN);
+    }
+
+    private void initializeFileCache(File cacheFile) {
+        long start = System.nanoTime();
+        try {
+            mCacheFile = StandCacheFile.open(cacheFile, mRules,
+                    mWithdrawnCards);
+            if (mCacheFile != null) {
+                mCachedStandValues = null;
+                EngineMetrics.getInstance().recordCacheLoad(
+                        System.nanoTime() - start);
+            } else {
+                System.out.println("Cache not found. Creating cache...");
+                computeAllStandValues();
+                StandCacheFile.write(cacheFile, mRules, mWithdrawnCards,
+                        mCachedStandValues);
+                // Lookups go to the mapped file from now on
+                mCachedStandValues = null;
+                mCacheFile = StandCacheFile.open(cacheFile, mRules,
+                        mWithdrawnCards);
+                EngineMetrics.getInstance().recordCacheBuild(
+                        System.nanoTime() - start);
+            }
+        } catch (IOException e) {
+            // Unlike the database, a file may fail for one pair only
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("Cache loaded successfully!");
     }
 
     private void initializeCache() {
+        long start = System.nanoTime();
+        boolean built = false;
         try {
-            Class.forName("org.sqlite.JDBC");
-            mDBConnection = DriverManager.
-                    getConnection("jdbc:sqlite:cacheDB/stand_odds.db");
-            mDBConnection.setAutoCommit(false);
-
-            mTableName = ((mRules.isDealerStandsSoft17()) ? "S" : "H") 
-                    + Integer.toString(mRules.getNumDecks());
-            mColName = "C" + Integer.toString(mWithdrawnCards[0]);
-            for (int i = 1; i < SIZE; i++) {
-                mColName += "_" + mWithdrawnCards[i];
-            }
-
-            DatabaseMetaData dbmd = mDBConnection.getMetaData();
-            ResultSet tables = dbmd.getTables(null, null, mTableName, null);
-
-            if (!tables.next()) {
-                mStatement = mDBConnection.createStatement();
-                String sql = "CREATE TABLE IF NOT EXISTS " 
-                        + mTableName + " (ID INT PRIMARY KEY NOT NULL)";
-                mStatement.executeUpdate(sql);
-                mStatement.close();
-
-                // Generate all possible player hands
-                int[] tempWithdrawnCards = new int[SIZE];
-                Iterable<int[]> allHands = PlayerHandGenerator.
-                        getHands(mRules.getNumDecks(), tempWithdrawnCards);
-                mStatement = mDBConnection.createStatement();
-                for (int[] playerHand : allHands) {
-                    for (int i = 0; i < SIZE; i++) {
-                        if (mRules.getNumDecks() * OCURRENCES[i]
-                                >= playerHand[i] + 1) {
-                            // Generate all possible player-dealer combos
-                            long code = HandEncoder.
-                                    encodeToHashKey(playerHand, i);
-                            sql = "INSERT INTO " + mTableName 
-                                    + " (ID) VALUES (" + code + ");";
-                            mStatement.executeUpdate(sql);
-                        }
-                    }
-                }
-                mStatement.close();
-                
+            openDB();
+            // Lazy caches may have stored only some of the values
+            if (loadStoredValues() < countCells()) {
                 cacheValues();
-            } else {
-                // Table already exists
-                ResultSet columns = dbmd.
-                        getColumns(null, null, mTableName, mColName);
-                if (columns.next()) {
-                    // Column already exists
-                    mStatement = mDBConnection.createStatement();
-                    ResultSet pairs = mStatement.
-                            executeQuery("SELECT ID, " + mColName 
-                                    + " FROM " + mTableName);
-                    while (pairs.next()) {
-                        long code = pairs.getLong("ID");
-                        float odds = pairs.getFloat(mColName);
-                        mCachedStandValues.put(code, odds);
-                    }
-                    pairs.close();
-                    mStatement.close();
-                } else {
-                    // Column does not exist
-                    cacheValues();
-                }
-                columns.close();
+                built = true;
             }
-            tables.close();
             mDBConnection.commit();
             mDBConnection.close();
         } catch (ClassNotFoundException | SQLException e) {
             handleDBException(e);
         }
+        long nanos = System.nanoTime() - start;
+        if (built) {
+            EngineMetrics.getInstance().recordCacheBuild(nanos);
+        } else {
+            EngineMetrics.getInstance().recordCacheLoad(nanos);
+        }
         System.out.println("Cache loaded successfully!");
     }
 
+    public BlackjackTableRules getRules() {
+        return mRules;
+    }
+
+    public int[] getWithdrawnCards() {
+        return mWithdrawnCards.clone();
+    }
+
+    /**
+     * Returns an estimate of the memory held by this cache, both
+     * on the heap and mapped from a cache file.
+     */
+
+    public long getSizeInBytes() {
+        long size = 0;
+        if (mDealerDistributions != null) {
+            size += (long) DISTRIBUTION_BYTES * mDealerDistributions.size();
+        }
+        if (mCachedStandValues != null) {
+            size += 4L * mCachedStandValues.length;
+        }
+        if (mCacheFile != null) {
+            size += mCacheFile.getMappedBytes();
+        }
+        return size;
+    }
+
+    public HandIndexer getIndexer() {
+        return mIndexer;
+    }
+
     public float getCachedValue(int[] playerHand, int[] dealerHand) {
         int dealerCard = HandEncoder.getDealerCard(dealerHand);
-        long code = HandEncoder.encodeToHashKey(playerHand, dealerCard);
-        return mCachedStandValues.get(code);
+        return getCachedValue(mIndexer.getIndex(playerHand, dealerCard));
+    }
+
+    public float getCachedValue(int[] playerHand, int dealerCard) {
+        return getCachedValue(mIndexer.getIndex(playerHand, dealerCard));
+    }
+
+    public float getCachedValue(CardComposition playerHand,
+            int dealerCard) {
+        return getCachedValue(mIndexer.getIndex(playerHand, dealerCard));
+    }
+
+    /**
+     * Returns the stand value of a HandIndexer cell,
+     * or NaN if the cell cannot occur for the withdrawn cards.
+     */
+
+    public float getCachedValue(int cellIndex) {
+        if (mCacheFile != null) {
+            return mCacheFile.getValue(cellIndex);
+        }
+        float value = mCachedStandValues[cellIndex];
+        if (Float.isNaN(value) && mCellLocks != null) {
+            value = computeLazyValue(cellIndex);
+        }
+        return value;
+    }
+
+    private float computeLazyValue(int cellIndex) {
+        synchronized (mCellLocks[cellIndex % LAZY_LOCKS]) {
+            // Another thread may have computed it meanwhile
+            float value = mCachedStandValues[cellIndex];
+            if (!Float.isNaN(value)) {
+                return value;
+            }
+            int[] playerHand = mIndexer.getPlayerHand(cellIndex);
+            if (Helper.numberOfCards(playerHand) < 2) {
+                // Not a player hand, as in computeAllStandValues
+                return Float.NaN;
+            }
+            int dealerCard = HandIndexer.getDealerCard(cellIndex);
+            CardComposition cardsOut = new CardComposition(playerHand);
+            cardsOut.add(dealerCard);
+            for (int i = 0; i < SIZE; i++) {
+                cardsOut.add(i, mWithdrawnCards[i]);
+                if (cardsOut.count(i) > mRules.getNumDecks() * OCURRENCES[i]) {
+                    // Cell cannot occur
+                    return Float.NaN;
+                }
+            }
+            DealerOutcomeEngine engine = mLazyEngines.poll();
+            if (engine == null) {
+                // Engines are not thread-safe, but they can share
+                // distributions
+                engine = new DealerOutcomeEngine(mRules,
+                        mDealerDistributions, null);
+            }
+            float[] outcomes = engine.getDistribution(dealerCard, cardsOut,
+                    true);
+            value = engine.expectationStand(playerHand, outcomes);
+            mLazyEngines.offer(engine);
+            mCachedStandValues[cellIndex] = value;
+            ExecutorService writer = mBackgroundWriter;
+            if (writer != null) {
+                mPendingValues.add(((long) cellIndex << 32)
+                        | (Float.floatToRawIntBits(value) & 0xFFFFFFFFL));
+                if (mWriteScheduled.compareAndSet(false, true)) {
+                    try {
+                        writer.execute(this::storePendingValues);
+                    } catch (RejectedExecutionException e) {
+                        // Closed meanwhile, so the value is not stored
+                    }
+                }
+            }
+            return value;
+        }
+    }
+
+    /**
+     * This method waits until every value computed so far by a
+     * lazy cache is stored in the database. Closed caches store
+     * nothing more.
+     * @throws IllegalStateException if a value could not be stored
+     * since the last flush
+     */
+
+    public void flushPendingValues() {
+        ExecutorService writer = mBackgroundWriter;
+        if (writer == null) {
+            return;
+        }
+        try {
+            writer.submit(this::storePendingValues).get();
+        } catch (RejectedExecutionException e) {
+            // Closed meanwhile, which stores the pending values
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            mWriteFailure.compareAndSet(null, e);
+        }
+        throwWriteFailure();
+    }
+
+    /**
+     * This method drops the dealer engines of a lazy cache and
+     * stores its pending values, then releases its database
+     * connection and its writer thread. The
+     * cache must not be used once closed. Other caches hold no
+     * resources, so closing them does nothing. Values computed by
+     * a closed lazy cache are not stored.
+     * @throws IllegalStateException if a value could not be stored
+     * since the last flush
+     */
+
+    @Override
+    public synchronized void close() {
+        if (mLazyEngines != null) {
+            mLazyEngines.clear();
+        }
+        ExecutorService writer = mBackgroundWriter;
+        if (writer == null) {
+            return;
+        }
+        // No value is queued from now on; the last write stores
+        // the ones queued so far
+        mBackgroundWriter = null;
+        writer.execute(this::storePendingValues);
+        writer.shutdown();
+        try {
+            writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            mDBConnection.close();
+        } catch (SQLException e) {
+            mWriteFailure.compareAndSet(null, e);
+        }
+        throwWriteFailure();
+    }
+
+    private void throwWriteFailure() {
+        Exception failure = mWriteFailure.getAndSet(null);
+        if (failure != null) {
+            throw new IllegalStateException(
+                    "Could not store the lazy stand values", failure);
+        }
+    }
+
+    /*
+     * Runs on the background writer, storing the values
+     * queued so far in one transaction; the values of a failed
+     * transaction are lost, and the failure is kept for the next
+     * flush or close
+     */
+    private void storePendingValues() {
+        mWriteScheduled.set(false);
+        if (mPendingValues.isEmpty()) {
+            return;
+        }
+        try (BatchedOddsWriter writer = new BatchedOddsWriter(
+                mDBConnection, insertSql(), mBatchSize)) {
+            Long pending;
+            while ((pending = mPendingValues.poll()) != null) {
+                writer.write(pending >>> 32,
+                        Float.intBitsToFloat((int) (long) pending));
+            }
+            writer.flush();
+            mDBConnection.commit();
+        } catch (SQLException e) {
+            try {
+                mDBConnection.rollback();
+            } catch (SQLException rollbackFailure) {
+                e.addSuppressed(rollbackFailure);
+            }
+            mWriteFailure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * This method derives the cache for other withdrawn cards from
+     * this one, typically once a few more cards have been dealt.
+     * A stand value only depends on the player hand and on the
+     * dealer outcome distribution for the total cards out, so the
+     * distributions of this cache are reused wherever the player
+     * hand plus the new withdrawn cards equals one of the cards out
+     * that were seen here, and only the remaining ones are walked.
+     * The derived cache is kept in memory only. Deriving from a
+     * cache that does not keep its distributions (one loaded from
+     * the database or from a file, for instance) computes every
+     * distribution.
+     * @param withdrawnCards withdrawn cards of the new cache
+     * @return the cache for the new withdrawn cards
+     */
+
+    public StandExpectationCache deriveCache(int[] withdrawnCards) {
+        return deriveCache(withdrawnCards, false);
+    }
+
+    /**
+     * Same as above.
+     * @param keepDistributions whether the derived cache keeps its
+     * dealer distributions (several MB) for caches derived from it
+     */
+
+    public StandExpectationCache deriveCache(int[] withdrawnCards,
+            boolean keepDistributions) {
+        return deriveCache(withdrawnCards, mParallelism, keepDistributions);
+    }
+
+    /**
+     * Same as above.
+     * @param parallelism number of threads computing the derived
+     * cache, which is also its parallelism
+     */
+
+    public StandExpectationCache deriveCache(int[] withdrawnCards,
+            int parallelism, boolean keepDistributions) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        return new StandExpectationCache(this, withdrawnCards, parallelism,
+                keepDistributions);
+    }
+
+    /**
+     * Returns the database file of the caches.
+     */
+
+    public static File getDBFile() {
+        return new File(System.getProperty(DB_FILE_PROPERTY,
+                DEFAULT_DB_FILE));
+    }
+
+    private void openDB() throws ClassNotFoundException, SQLException {
+        Class.forName("org.sqlite.JDBC");
+        mDBConnection = DriverManager.
+                getConnection("jdbc:sqlite:" + getDBFile().getPath());
+        mDBConnection.setAutoCommit(false);
+
+        try (Statement statement = mDBConnection.createStatement()) {
+            for (String sql : SCHEMA) {
+                statement.executeUpdate(sql);
+            }
+        }
+        mRulesId = lookUpId("Rules", "RulesID",
+                "NumDecks = " + mRules.getNumDecks()
+                + " AND DealerStandsSoft17 = "
+                + (mRules.isDealerStandsSoft17() ? 1 : 0)
+                + " AND BlackjackPays = ?",
+                "(NumDecks, DealerStandsSoft17, BlackjackPays)"
+                + " VALUES (" + mRules.getNumDecks() + ", "
+                + (mRules.isDealerStandsSoft17() ? 1 : 0) + ", ?)",
+                mRules.getBlackjackPays());
+        mCompositionId = lookUpId("Compositions", "CompositionID",
+                "WithdrawnCards = ?", "(WithdrawnCards) VALUES (?)",
+                compositionKey(mWithdrawnCards));
+    }
+
+    private int loadStoredValues() throws SQLException {
+        int loaded = 0;
+        try (PreparedStatement statement = mDBConnection.prepareStatement(
+                "SELECT HandIndex, Odds FROM StandValues"
+                + " WHERE RulesID = ? AND CompositionID = ?")) {
+            statement.setLong(1, mRulesId);
+            statement.setLong(2, mCompositionId);
+            try (ResultSet values = statement.executeQuery()) {
+                while (values.next()) {
+                    mCachedStandValues[values.getInt(1)] =
+                            values.getFloat(2);
+                    loaded++;
+                }
+            }
+        }
+        return loaded;
+    }
+
+    /*
+     * Number of cells that can occur for the withdrawn cards
+     */
+    private int countCells() {
+        return PlayerHandGenerator.stream(mRules.getNumDecks(),
+                mWithdrawnCards).mapToInt(playerHand -> {
+                    int cells = 0;
+                    for (int i = 0; i < SIZE; i++) {
+                        if (mRules.getNumDecks() * OCURRENCES[i]
+                                >= playerHand[i] + mWithdrawnCards[i] + 1) {
+                            cells++;
+                        }
+                    }
+                    return cells;
+                }).sum();
     }
 
     private void cacheValues(){
         System.out.println("Cache not found. Creating cache...");
-        
-        // Temporary BlackjackComputer to find stand exps
-        BlackjackOddsComputer boc = new BlackjackOddsComputer(mRules);
-        boc.setWithdrawnCards(mWithdrawnCards.clone());
-        Iterable<int[]> playerHands = PlayerHandGenerator.
-                getHands(mRules.getNumDecks(), mWithdrawnCards);
-        for (int[] playerHand : playerHands) {
+        computeAllStandValues();
+        storeCachedStandValuesToDB();
+    }
+
+    private void computeAllStandValues() {
+        List<int[]> playerHands = PlayerHandGenerator.
+                stream(mRules.getNumDecks(), mWithdrawnCards).
+                collect(Collectors.toList());
+        if (mParallelism == 1) {
+            computeStandValues(playerHands, 0, playerHands.size());
+        } else {
+            ForkJoinPool pool = new ForkJoinPool(mParallelism);
+            try {
+                pool.invoke(new StandValuesTask(
+                        playerHands, 0, playerHands.size()));
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    private void computeStandValues(List<int[]> playerHands,
+            int from, int to) {
+        DealerOutcomeEngine engine = new DealerOutcomeEngine(mRules,
+                mDealerDistributions, mPreviousDistributions);
+        CardComposition cardsOut = new CardComposition();
+        for (int[] playerHand : playerHands.subList(from, to)) {
+            cardsOut.set(playerHand);
+            for (int i = 0; i < SIZE; i++) {
+                cardsOut.add(i, mWithdrawnCards[i]);
+            }
             for (int i = 0; i < SIZE; i++) {
                 if (mRules.getNumDecks() * OCURRENCES[i]
                         >= playerHand[i]
                                 + mWithdrawnCards[i] + 1) {
-                    int[] dealerHand = new int[SIZE];
-                    dealerHand[i] = 1;
-                    boc.setPlayerHand(playerHand);
-                    boc.setDealerHand(dealerHand);
-                    long code = HandEncoder.encodeToHashKey(playerHand, i);
-                    float standExp = boc.computeExpectationStand(true);
-                    mCachedStandValues.put(code, standExp);
+                    cardsOut.add(i);
+                    float[] outcomes = engine.getDistribution(i, cardsOut,
+                            true);
+                    cardsOut.remove(i);
+                    mCachedStandValues[mIndexer.getIndex(playerHand, i)] =
+                            engine.expectationStand(playerHand, outcomes);
                 }
             }
         }
-        storeCachedStandValuesToDB();
+        mReusedDistributions.addAndGet(engine.getReusedDistributions());
     }
 
-    private void storeCachedStandValuesToDB() {
-        try {
-            mStatement = mDBConnection.createStatement();
-            String sql = "ALTER TABLE " + mTableName
-                    + " ADD " + mColName + " REAL";
-            mStatement.executeUpdate(sql);
-            mStatement.close();
+    /**
+     * Computes the stand values of a range of player hands,
+     * splitting it in halves until it is small enough.
+     * Each (player hand, upcard) cell is independent and is
+     * written by a single task, so the result does not depend
+     * on how the range is split.
+     */
+    private class StandValuesTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final List<int[]> mPlayerHands;
+        private final int mFrom;
+        private final int mTo;
 
-            mStatement = mDBConnection.createStatement();
-            for (long code : mCachedStandValues.keySet()) {
-                sql = "UPDATE " + mTableName +
-                        " SET " + mColName + " = " 
-                        + mCachedStandValues.get(code) + 
-                        " WHERE ID = " + code;
-                mStatement.executeUpdate(sql);
+        StandValuesTask(List<int[]> playerHands, int from, int to) {
+            mPlayerHands = playerHands;
+            mFrom = from;
+            mTo = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (mTo - mFrom <= HANDS_PER_TASK) {
+                computeStandValues(mPlayerHands, mFrom, mTo);
+                return;
             }
-            mStatement.close();
+            int middle = (mFrom + mTo) >>> 1;
+            StandValuesTask left = new StandValuesTask(mPlayerHands,
+                    mFrom, middle);
+            StandValuesTask right = new StandValuesTask(mPlayerHands,
+                    middle, mTo);
+            left.fork();
+            right.compute();
+            left.join();
+        }
+    }
 
+    private String insertSql() {
+        // The ids come from the database, so they are safe to inline
+        return "INSERT OR REPLACE INTO StandValues"
+                + " (RulesID, CompositionID, HandIndex, Odds) VALUES ("
+                + mRulesId + ", " + mCompositionId + ", ?, ?)";
+    }
 
+    private void storeCachedStandValuesToDB() {
+        try (BatchedOddsWriter writer = new BatchedOddsWriter(mDBConnection,
+                insertSql(), mBatchSize)) {
+            for (int i = 0; i < mCachedStandValues.length; i++) {
+                if (!Float.isNaN(mCachedStandValues[i])) {
+                    writer.write(i, mCachedStandValues[i]);
+                }
+            }
         } catch (SQLException e) {
             handleDBException(e);
         }
     }
 
+    /*
+     * Returns the id of the row of a lookup table matching a
+     * condition with one parameter, inserting the row if needed
+     */
+    private long lookUpId(String table, String idColumn, String condition,
+            String insert, Object parameter) throws SQLException {
+        try (PreparedStatement statement = mDBConnection.prepareStatement(
+                "INSERT OR IGNORE INTO " + table + " " + insert)) {
+            statement.setObject(1, parameter);
+            statement.executeUpdate();
+        }
+        try (PreparedStatement statement = mDBConnection.prepareStatement(
+                "SELECT " + idColumn + " FROM " + table
+                + " WHERE " + condition)) {
+            statement.setObject(1, parameter);
+            try (ResultSet ids = statement.executeQuery()) {
+                if (!ids.next()) {
+                    throw new SQLException("No " + idColumn + " in " + table);
+                }
+                return ids.getLong(1);
+            }
+        }
+    }
+
+    private static String compositionKey(int[] withdrawnCards) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < SIZE; i++) {
+            if (i > 0) {
+                key.append('_');
+            }
+            key.append(withdrawnCards[i]);
+        }
+        return key.toString();
+    }
+
     private void handleDBException(Exception e) {
         System.err.println(e.getClass().getName() + ": " + e.getMessage());
         System.exit(0);
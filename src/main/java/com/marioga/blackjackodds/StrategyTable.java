@@ -0,0 +1,251 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class holds the expected returns of every action for
+ * every (player hand, dealer upcard) cell of one choice of rules
+ * and withdrawn cards, indexed by HandIndexer cell, together with
+ * the best action of each cell packed into two bits. Expected
+ * returns of actions that are not available, and of cells that
+ * cannot occur, are NaN. Tables are built by StrategyTableGenerator
+ * and can be saved to and read from a binary file, which holds
+ * a header with the rules and withdrawn cards, the four arrays of
+ * expected returns and the packed decision table.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+public final class StrategyTable {
+    public static final int ACTION_STAND = 0;
+    public static final int ACTION_HIT = 1;
+    public static final int ACTION_DOUBLE = 2;
+    public static final int ACTION_SPLIT = 3;
+
+    private static final int MAGIC = 0x424A5354; // "BJST"
+    // Version 2 added the maximum number of split hands and
+    // version 3 the exact split aces mode
+    private static final int VERSION = 3;
+    private static final int SIZE = 10;
+    private static final int HEADER_SIZE = 4 * (2 + 7 + SIZE + 1);
+    private static final int BITS_PER_ACTION = 2;
+    private static final int ACTIONS_PER_WORD = 64 / BITS_PER_ACTION;
+
+    private final BlackjackTableRules mRules;
+    private final int[] mWithdrawnCards;
+    private final HandIndexer mIndexer;
+    private final float[] mStand;
+    private final float[] mHit;
+    private final float[] mDouble;
+    private final float[] mSplit;
+    private final long[] mActions;
+
+    StrategyTable(BlackjackTableRules rules, int[] withdrawnCards,
+            float[] stand, float[] hit, float[] doubleDown, float[] split) {
+        this(rules, withdrawnCards, stand, hit, doubleDown, split,
+                packActions(stand, hit, doubleDown, split));
+    }
+
+    private StrategyTable(BlackjackTableRules rules, int[] withdrawnCards,
+            float[] stand, float[] hit, float[] doubleDown, float[] split,
+            long[] actions) {
+        mRules = rules;
+        mWithdrawnCards = withdrawnCards.clone();
+        mIndexer = new HandIndexer(rules.getNumDecks());
+        mStand = stand;
+        mHit = hit;
+        mDouble = doubleDown;
+        mSplit = split;
+        mActions = actions;
+    }
+
+    public BlackjackTableRules getRules() {
+        return mRules;
+    }
+
+    public int[] getWithdrawnCards() {
+        return mWithdrawnCards.clone();
+    }
+
+    public HandIndexer getIndexer() {
+        return mIndexer;
+    }
+
+    public HandOdds getOdds(int[] playerHand, int dealerUpcard) {
+        return getOdds(mIndexer.getIndex(playerHand, dealerUpcard));
+    }
+
+    public HandOdds getOdds(int cellIndex) {
+        return new HandOdds(mStand[cellIndex], mHit[cellIndex],
+                mDouble[cellIndex], mSplit[cellIndex]);
+    }
+
+    /**
+     * Returns the action (one of the ACTION constants) with the
+     * highest expected return; ties go to the first action.
+     */
+
+    public int getBestAction(int[] playerHand, int dealerUpcard) {
+        return getBestAction(mIndexer.getIndex(playerHand, dealerUpcard));
+    }
+
+    public int getBestAction(int cellIndex) {
+        long word = mActions[cellIndex / ACTIONS_PER_WORD];
+        int shift = BITS_PER_ACTION * (cellIndex % ACTIONS_PER_WORD);
+        return (int) (word >>> shift) & ((1 << BITS_PER_ACTION) - 1);
+    }
+
+    /**
+     * Returns the action with the highest expected return,
+     * skipping NaN ones; ties go to the first action.
+     */
+
+    static int getBestAction(float stand, float hit, float doubleDown,
+            float split) {
+        // NaN never compares greater, so missing actions are
+        // skipped and cells that cannot occur are left at stand
+        int bestAction = ACTION_STAND;
+        float bestValue = stand;
+        if (hit > bestValue) {
+            bestAction = ACTION_HIT;
+            bestValue = hit;
+        }
+        if (doubleDown > bestValue) {
+            bestAction = ACTION_DOUBLE;
+            bestValue = doubleDown;
+        }
+        if (split > bestValue) {
+            bestAction = ACTION_SPLIT;
+        }
+        return bestAction;
+    }
+
+    private static long[] packActions(float[] stand, float[] hit,
+            float[] doubleDown, float[] split) {
+        long[] actions = new long[
+                (stand.length + ACTIONS_PER_WORD - 1) / ACTIONS_PER_WORD];
+        for (int i = 0; i < stand.length; i++) {
+            int bestAction = getBestAction(stand[i], hit[i], doubleDown[i],
+                    split[i]);
+            actions[i / ACTIONS_PER_WORD] |= (long) bestAction
+                    << (BITS_PER_ACTION * (i % ACTIONS_PER_WORD));
+        }
+        return actions;
+    }
+
+    /**
+     * This method writes the table to a new file,
+     * replacing any existing one only once it is complete.
+     */
+
+    public void write(File file) throws IOException {
+        ByteBuffer buffer = toBuffer();
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the contents of a table file, ready to be written.
+     */
+
+    ByteBuffer toBuffer() {
+        int numCells = mStand.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE
+                + 16 * numCells + 8 * mActions.length);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(mRules.getNumDecks());
+        buffer.putInt(mRules.isDealerStandsSoft17() ? 1 : 0);
+        buffer.putInt(mRules.isDoubleAfterSplit() ? 1 : 0);
+        buffer.putInt(mRules.isAceReSplits() ? 1 : 0);
+        buffer.putFloat(mRules.getBlackjackPays());
+        buffer.putInt(mRules.getMaxSplitHands());
+        buffer.putInt(mRules.isExactSplitAces() ? 1 : 0);
+        for (int i = 0; i < SIZE; i++) {
+            buffer.putInt(mWithdrawnCards[i]);
+        }
+        buffer.putInt(numCells);
+        for (float[] values : new float[][] { mStand, mHit, mDouble, mSplit }) {
+            for (float value : values) {
+                buffer.putFloat(value);
+            }
+        }
+        for (long word : mActions) {
+            buffer.putLong(word);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * This method reads a table written by write(File).
+     * @throws IOException if the file is not a valid table
+     */
+
+    public static StrategyTable read(File file) throws IOException {
+        return read(ByteBuffer.wrap(Files.readAllBytes(file.toPath())),
+                file.toString());
+    }
+
+    /**
+     * Same as above for the remaining contents of a buffer.
+     * @param source name of the buffer's source, for error messages
+     */
+
+    static StrategyTable read(ByteBuffer buffer, String source)
+            throws IOException {
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION) {
+            throw new IOException("Not a strategy table: " + source);
+        }
+        BlackjackTableRules rules;
+        try {
+            rules = new BlackjackTableRules(buffer.getInt(),
+                    buffer.getInt() == 1, buffer.getInt() == 1,
+                    buffer.getInt() == 1, buffer.getFloat(), buffer.getInt(),
+                    buffer.getInt() == 1);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupt strategy table header: " + source,
+                    e);
+        }
+        int[] withdrawnCards = new int[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            withdrawnCards[i] = buffer.getInt();
+        }
+        int numCells = buffer.getInt();
+        int numWords = (numCells + ACTIONS_PER_WORD - 1) / ACTIONS_PER_WORD;
+        if (numCells != new HandIndexer(rules.getNumDecks()).getNumCells()
+                || buffer.remaining() != 16 * numCells + 8 * numWords) {
+            throw new IOException("Truncated strategy table: " + source);
+        }
+        float[][] values = new float[4][numCells];
+        for (float[] array : values) {
+            for (int i = 0; i < numCells; i++) {
+                array[i] = buffer.getFloat();
+            }
+        }
+        long[] actions = new long[numWords];
+        for (int i = 0; i < numWords; i++) {
+            actions[i] = buffer.getLong();
+        }
+        return new StrategyTable(rules, withdrawnCards, values[0],
+                values[1], values[2], values[3], actions);
+    }
+}
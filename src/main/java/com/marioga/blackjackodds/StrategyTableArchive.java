@@ -0,0 +1,263 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class reads and writes many StrategyTables, one per shoe
+ * state (withdrawn cards), as a single indexed file. The layout is:
+ *
+ * - a header with a magic number, the format version and the
+ *   number of tables N
+ * - an index of N entries, each with the withdrawn cards of a
+ *   table, and the offset and length of the table in the file
+ * - the N tables, each as written by StrategyTable.write
+ *
+ * Only the index is read when the archive is opened; tables are
+ * read from the file when they are asked for.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+public class StrategyTableArchive implements Closeable {
+    private static final int MAGIC = 0x424A5341; // "BJSA"
+    private static final int VERSION = 1;
+    private static final int SIZE = 10;
+    private static final int HEADER_SIZE = 4 * 3;
+    private static final int ENTRY_SIZE = 4 * SIZE + 8 + 4;
+
+    private final File mFile;
+    private final FileChannel mChannel;
+    private final int[][] mWithdrawnCards;
+    private final long[] mOffsets;
+    private final int[] mLengths;
+
+    private StrategyTableArchive(File file, FileChannel channel,
+            int[][] withdrawnCards, long[] offsets, int[] lengths) {
+        mFile = file;
+        mChannel = channel;
+        mWithdrawnCards = withdrawnCards;
+        mOffsets = offsets;
+        mLengths = lengths;
+    }
+
+    public int size() {
+        return mWithdrawnCards.length;
+    }
+
+    public int[] getWithdrawnCards(int index) {
+        return mWithdrawnCards[index].clone();
+    }
+
+    /**
+     * Returns the position of the table of some withdrawn
+     * cards, or -1 if the archive does not hold it.
+     */
+
+    public int indexOf(int[] withdrawnCards) {
+        for (int i = 0; i < mWithdrawnCards.length; i++) {
+            if (Arrays.equals(mWithdrawnCards[i], withdrawnCards)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public StrategyTable getTable(int index) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(mLengths[index]);
+        long position = mOffsets[index];
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Truncated strategy archive: " + mFile);
+            }
+            position += read;
+        }
+        buffer.flip();
+        return StrategyTable.read(buffer, mFile + "#" + index);
+    }
+
+    /**
+     * Returns the table of some withdrawn cards,
+     * or null if the archive does not hold it.
+     */
+
+    public StrategyTable getTable(int[] withdrawnCards) throws IOException {
+        int index = indexOf(withdrawnCards);
+        return index < 0 ? null : getTable(index);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mChannel.close();
+    }
+
+    /**
+     * This method opens an archive and reads its index.
+     * @throws IOException if the file is not a valid archive
+     */
+
+    public static StrategyTableArchive open(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.READ);
+        try {
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            if (header == null || header.getInt() != MAGIC
+                    || header.getInt() != VERSION) {
+                throw new IOException("Not a strategy archive: " + file);
+            }
+            int numTables = header.getInt();
+            ByteBuffer index = read(channel, HEADER_SIZE,
+                    ENTRY_SIZE * numTables);
+            if (index == null) {
+                throw new IOException("Truncated strategy archive: " + file);
+            }
+            int[][] withdrawnCards = new int[numTables][SIZE];
+            long[] offsets = new long[numTables];
+            int[] lengths = new int[numTables];
+            for (int i = 0; i < numTables; i++) {
+                for (int j = 0; j < SIZE; j++) {
+                    withdrawnCards[i][j] = index.getInt();
+                }
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+                if (offsets[i] + lengths[i] > channel.size()) {
+                    throw new IOException(
+                            "Truncated strategy archive: " + file);
+                }
+            }
+            return new StrategyTableArchive(file, channel, withdrawnCards,
+                    offsets, lengths);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position,
+            int length) throws IOException {
+        if (length < 0 || channel.size() < position + length) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            position += channel.read(buffer, position);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * This class writes an archive of a known number of tables,
+     * which may be added in any order. The archive replaces any
+     * existing file only once it is closed with every table added.
+     */
+    public static final class Writer implements Closeable {
+        private final File mFile;
+        private final File mTempFile;
+        private final FileChannel mChannel;
+        private final int[][] mWithdrawnCards;
+        private final long[] mOffsets;
+        private final int[] mLengths;
+        private long mPosition;
+
+        /**
+         * @param file archive to write
+         * @param withdrawnCards withdrawn cards of every table,
+         * in the order of the index
+         */
+        public Writer(File file, int[][] withdrawnCards)
+                throws IOException {
+            mFile = file;
+            mTempFile = new File(file.getPath() + ".tmp");
+            mWithdrawnCards = new int[withdrawnCards.length][];
+            for (int i = 0; i < withdrawnCards.length; i++) {
+                mWithdrawnCards[i] = withdrawnCards[i].clone();
+            }
+            mOffsets = new long[withdrawnCards.length];
+            mLengths = new int[withdrawnCards.length];
+            Arrays.fill(mOffsets, -1);
+            mChannel = FileChannel.open(mTempFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            // The header and index are written once every table is in
+            mPosition = HEADER_SIZE + (long) ENTRY_SIZE * withdrawnCards.length;
+        }
+
+        /**
+         * This method appends the table at some position
+         * of the index.
+         */
+
+        public synchronized void add(int index, StrategyTable table)
+                throws IOException {
+            if (!Arrays.equals(mWithdrawnCards[index],
+                    table.getWithdrawnCards())) {
+                throw new IllegalArgumentException("Table " + index
+                        + " was built for other withdrawn cards");
+            }
+            ByteBuffer buffer = table.toBuffer();
+            mOffsets[index] = mPosition;
+            mLengths[index] = buffer.remaining();
+            write(buffer);
+        }
+
+        private void write(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                mPosition += mChannel.write(buffer, mPosition);
+            }
+        }
+
+        /**
+         * This method writes the index and moves the archive
+         * into place, or just discards it if a table is missing.
+         */
+
+        @Override
+        public synchronized void close() throws IOException {
+            boolean complete = true;
+            for (long offset : mOffsets) {
+                complete = complete && offset >= 0;
+            }
+            try {
+                if (complete) {
+                    ByteBuffer index = ByteBuffer.allocate(HEADER_SIZE
+                            + ENTRY_SIZE * mOffsets.length);
+                    index.putInt(MAGIC);
+                    index.putInt(VERSION);
+                    index.putInt(mOffsets.length);
+                    for (int i = 0; i < mOffsets.length; i++) {
+                        for (int j = 0; j < SIZE; j++) {
+                            index.putInt(mWithdrawnCards[i][j]);
+                        }
+                        index.putLong(mOffsets[i]);
+                        index.putInt(mLengths[i]);
+                    }
+                    index.flip();
+                    long position = 0;
+                    while (index.hasRemaining()) {
+                        position += mChannel.write(index, position);
+                    }
+                    mChannel.force(true);
+                }
+            } finally {
+                mChannel.close();
+            }
+            if (complete) {
+                Files.move(mTempFile.toPath(), mFile.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+            } else {
+                Files.deleteIfExists(mTempFile.toPath());
+            }
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class builds the StrategyTable of one choice of rules and
+ * withdrawn cards. The dealer upcards are spread over a pool of
+ * worker threads, which evaluate every player hand against their
+ * upcard in one batch of a shared OddsEvaluator (a
+ * BlackjackOddsEngine unless another one is given), so the work
+ * the hands have in common is only done once, and write the
+ * expected returns straight into the cells of the table as soon
+ * as each batch is done. With more threads than upcards, the
+ * hands of each upcard are split into several batches, at the
+ * cost of doing some of the common work more than once.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+
+public class StrategyTableGenerator {
+    private static final int[] UPCARDS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    private static final int SIZE = 10;
+
+    private final BlackjackTableRules mRules;
+    private final int[] mWithdrawnCards;
+    private final OddsEvaluator mEngine;
+    private final HandIndexer mIndexer;
+    private final int mParallelism;
+
+    private float[] mStand;
+    private float[] mHit;
+    private float[] mDouble;
+    private float[] mSplit;
+    private CellListener mListener;
+
+    /**
+     * This interface is notified of every cell as soon as it is
+     * evaluated, from the worker threads, so results can be
+     * consumed while the rest of the table is computed.
+     */
+    public interface CellListener {
+        void cellEvaluated(int cellIndex, HandOdds odds);
+    }
+
+    public StrategyTableGenerator(BlackjackTableRules rules,
+            int[] withdrawnCards, StandExpectationCache cache,
+            int parallelism) {
+        this(new BlackjackOddsEngine(rules, withdrawnCards, cache),
+                parallelism);
+    }
+
+    public StrategyTableGenerator(OddsEvaluator engine, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        mRules = engine.getRules();
+        mWithdrawnCards = engine.getWithdrawnCards();
+        mEngine = engine;
+        mIndexer = new HandIndexer(mRules.getNumDecks());
+        mParallelism = parallelism;
+    }
+
+    /**
+     * This method computes the expected returns of every action
+     * for every (player hand, dealer upcard) cell.
+     * @return the table of expected returns and best actions
+     */
+
+    public StrategyTable generate() {
+        return generate(null);
+    }
+
+    /**
+     * Same as above, notifying a listener of every cell.
+     * @param listener notified of every evaluated cell; may be null
+     */
+
+    public StrategyTable generate(CellListener listener) {
+        mListener = listener;
+        mStand = newCells();
+        mHit = newCells();
+        mDouble = newCells();
+        mSplit = newCells();
+        List<int[]> playerHands = PlayerHandGenerator.
+                stream(mRules.getNumDecks(), mWithdrawnCards).
+                collect(Collectors.toList());
+        if (mParallelism == 1) {
+            // One upcard at a time, so cells are reported early
+            for (int upcard : UPCARDS) {
+                setCells(playerHands, upcard,
+                        mEngine.evaluateBatch(playerHands, upcard));
+            }
+        } else {
+            List<List<int[]>> batches = split(playerHands);
+            ForkJoinPool pool = new ForkJoinPool(mParallelism);
+            try {
+                List<ForkJoinTask<?>> tasks = new ArrayList<>();
+                for (int upcard : UPCARDS) {
+                    for (List<int[]> batch : batches) {
+                        tasks.add(pool.submit(() -> setCells(batch, upcard,
+                                mEngine.evaluateBatch(batch, upcard))));
+                    }
+                }
+                for (ForkJoinTask<?> task : tasks) {
+                    task.join();
+                }
+            } finally {
+                pool.shutdown();
+            }
+        }
+        return new StrategyTable(mRules, mWithdrawnCards,
+                mStand, mHit, mDouble, mSplit);
+    }
+
+    /*
+     * Splits the hands into enough batches per upcard to give
+     * every thread about two batches, if there are more threads
+     * than upcards
+     */
+    private List<List<int[]>> split(List<int[]> playerHands) {
+        int numBatches = mParallelism <= SIZE ? 1
+                : (2 * mParallelism + SIZE - 1) / SIZE;
+        List<List<int[]>> batches = new ArrayList<>();
+        int batchSize = (playerHands.size() + numBatches - 1) / numBatches;
+        for (int first = 0; first < playerHands.size();
+                first += batchSize) {
+            batches.add(playerHands.subList(first, Math.min(
+                    first + batchSize, playerHands.size())));
+        }
+        return batches;
+    }
+
+    private float[] newCells() {
+        float[] cells = new float[mIndexer.getNumCells()];
+        Arrays.fill(cells, Float.NaN);
+        return cells;
+    }
+
+    /*
+     * Every cell is written by a single thread, so the result
+     * does not depend on how the upcards are shared out
+     */
+    private void setCells(List<int[]> playerHands, int dealerUpcard,
+            HandOdds[] odds) {
+        for (int k = 0; k < odds.length; k++) {
+            if (odds[k] != null) {
+                int cell = mIndexer.getIndex(playerHands.get(k),
+                        dealerUpcard);
+                mStand[cell] = odds[k].getStand();
+                mHit[cell] = odds[k].getHit();
+                mDouble[cell] = odds[k].getDouble();
+                mSplit[cell] = odds[k].getSplit();
+                if (mListener != null) {
+                    mListener.cellEvaluated(cell, odds[k]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class computes the StrategyTables of a grid of shoe states
+ * (withdrawn cards) for one choice of rules, and stores them all in
+ * one StrategyTableArchive. The states are visited in an order where
+ * each one is close to the one before, starting from the state of a
+ * base cache (typically the full shoe, loaded from the database or
+ * a cache file), and the stand-expectation cache of each state is
+ * derived from the cache of the one before (see
+ * StandExpectationCache.deriveCache), so neighbouring states share
+ * their dealer distributions. Both the caches and the tables
+ * are computed by a pool of worker threads.
+ *
+ * hiLoWithdrawnCards builds a representative state for a Hi-Lo true
+ * count and a penetration, so grids of count-indexed tables can be
+ * built in one run.
+ *
+ * @author marioga
+ *
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class StrategyTablePipeline {
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    // Hi-Lo tags: 2-6 count +1, 7-9 count 0, 10s and Aces count -1
+    private static final int[] HI_LO_TAGS = { -1, 1, 1, 1, 1, 1, 0, 0, 0, -1 };
+
+    private final BlackjackTableRules mRules;
+    private final StandExpectationCache mBaseCache;
+    private final int mParallelism;
+
+    /**
+     * This interface is notified every time a table is
+     * computed and written to the archive.
+     */
+    public interface ProgressListener {
+        void tableWritten(int tablesDone, int numTables,
+                int[] withdrawnCards, long millis);
+    }
+
+    /**
+     * @param baseCache cache the first state is derived from; its
+     * rules are the rules of every table
+     * @param parallelism number of worker threads
+     */
+    public StrategyTablePipeline(StandExpectationCache baseCache,
+            int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(
+                    "Parallelism must be positive: " + parallelism);
+        }
+        mRules = baseCache.getRules();
+        mBaseCache = baseCache;
+        mParallelism = parallelism;
+    }
+
+    /**
+     * This method computes the table of every shoe state and
+     * writes them to an archive, indexed in the order of the list.
+     * @param states withdrawn cards of every table
+     * @param archive file to write
+     */
+
+    public void run(List<int[]> states, File archive) throws IOException {
+        run(states, archive, null);
+    }
+
+    /**
+     * Same as above, notifying a listener of every table written.
+     * @param listener notified of every table; may be null
+     */
+
+    public void run(List<int[]> states, File archive,
+            ProgressListener listener) throws IOException {
+        int[][] withdrawnCards = states.toArray(new int[0][]);
+        for (int[] state : withdrawnCards) {
+            checkState(state);
+        }
+        int[] order = visitingOrder(mBaseCache.getWithdrawnCards(),
+                withdrawnCards);
+        try (StrategyTableArchive.Writer writer =
+                new StrategyTableArchive.Writer(archive, withdrawnCards)) {
+            StandExpectationCache cache = mBaseCache;
+            for (int i = 0; i < order.length; i++) {
+                int[] state = withdrawnCards[order[i]];
+                long start = System.currentTimeMillis();
+                // The next state is derived from this one
+                cache = cache.deriveCache(state, mParallelism, true);
+                StrategyTable table = new StrategyTableGenerator(mRules,
+                        state, cache, mParallelism).generate();
+                writer.add(order[i], table);
+                if (listener != null) {
+                    listener.tableWritten(i + 1, order.length, state,
+                            System.currentTimeMillis() - start);
+                }
+            }
+        }
+    }
+
+    private void checkState(int[] withdrawnCards) {
+        if (withdrawnCards.length != SIZE) {
+            throw new IllegalArgumentException("Withdrawn cards must have "
+                    + SIZE + " ranks: " + Arrays.toString(withdrawnCards));
+        }
+        for (int i = 0; i < SIZE; i++) {
+            if (withdrawnCards[i] < 0 || withdrawnCards[i]
+                    > mRules.getNumDecks() * OCURRENCES[i]) {
+                throw new IllegalArgumentException("Withdrawn cards do not"
+                        + " fit in the shoe: "
+                        + Arrays.toString(withdrawnCards));
+            }
+        }
+    }
+
+    /*
+     * Greedy nearest-neighbour tour: always moves to the
+     * closest state not visited yet, starting from the base
+     */
+    private static int[] visitingOrder(int[] base, int[][] states) {
+        int n = states.length;
+        int[] order = new int[n];
+        boolean[] visited = new boolean[n];
+        int[] current = base;
+        for (int k = 0; k < n; k++) {
+            int next = -1;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int i = 0; i < n; i++) {
+                if (!visited[i]) {
+                    int distance = distance(current, states[i]);
+                    if (distance < bestDistance) {
+                        next = i;
+                        bestDistance = distance;
+                    }
+                }
+            }
+            order[k] = next;
+            visited[next] = true;
+            current = states[next];
+        }
+        return order;
+    }
+
+    private static int distance(int[] state1, int[] state2) {
+        int distance = 0;
+        for (int i = 0; i < SIZE; i++) {
+            distance += Math.abs(state1[i] - state2[i]);
+        }
+        return distance;
+    }
+
+    /**
+     * This method builds representative withdrawn cards for a
+     * Hi-Lo true count: the dealt cards are spread as evenly as
+     * possible over the ranks of each Hi-Lo tag, with as many more
+     * low cards than high cards dealt as the running count needs.
+     * @param numDecks number of decks in the shoe
+     * @param penetration fraction of the shoe dealt
+     * @param trueCount running count per remaining deck
+     * @return the withdrawn cards
+     */
+
+    public static int[] hiLoWithdrawnCards(int numDecks, double penetration,
+            double trueCount) {
+        if (!(penetration >= 0 && penetration < 1)) {
+            throw new IllegalArgumentException(
+                    "Penetration must be in [0, 1): " + penetration);
+        }
+        int shoeSize = 0;
+        int[] cardsPerTag = new int[3];
+        for (int i = 0; i < SIZE; i++) {
+            shoeSize += numDecks * OCURRENCES[i];
+            cardsPerTag[HI_LO_TAGS[i] + 1] += numDecks * OCURRENCES[i];
+        }
+        int dealt = (int) Math.round(penetration * shoeSize);
+        double runningCount = trueCount * (shoeSize - dealt) / 52.0;
+        // Neutral cards are dealt in proportion to the shoe
+        int neutral = (int) Math.round((double) dealt * cardsPerTag[1]
+                / shoeSize);
+        int low = (int) Math.round((dealt - neutral + runningCount) / 2);
+        int high = dealt - neutral - low;
+        if (low < 0 || high < 0 || low > cardsPerTag[2]
+                || high > cardsPerTag[0]) {
+            throw new IllegalArgumentException("True count " + trueCount
+                    + " cannot be reached at penetration " + penetration);
+        }
+        int[] withdrawnCards = new int[SIZE];
+        spread(withdrawnCards, 1, low, numDecks);
+        spread(withdrawnCards, 0, neutral, numDecks);
+        spread(withdrawnCards, -1, high, numDecks);
+        return withdrawnCards;
+    }
+
+    /*
+     * Spreads cards over the ranks of a tag in proportion to the
+     * number of cards of each rank, largest remainders first
+     */
+    private static void spread(int[] withdrawnCards, int tag, int cards,
+            int numDecks) {
+        int tagSize = 0;
+        for (int i = 0; i < SIZE; i++) {
+            if (HI_LO_TAGS[i] == tag) {
+                tagSize += numDecks * OCURRENCES[i];
+            }
+        }
+        int left = cards;
+        double[] remainders = new double[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            if (HI_LO_TAGS[i] == tag) {
+                double share = (double) cards * numDecks * OCURRENCES[i]
+                        / tagSize;
+                withdrawnCards[i] = (int) share;
+                remainders[i] = share - withdrawnCards[i];
+                left -= withdrawnCards[i];
+            }
+        }
+        while (left > 0) {
+            int best = -1;
+            for (int i = 0; i < SIZE; i++) {
+                if (HI_LO_TAGS[i] == tag && (best == -1
+                        || remainders[i] > remainders[best])) {
+                    best = i;
+                }
+            }
+            withdrawnCards[best]++;
+            remainders[best] = -1;
+            left--;
+        }
+    }
+}
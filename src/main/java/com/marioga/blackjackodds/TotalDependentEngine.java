@@ -0,0 +1,428 @@
+package com.marioga.blackjackodds;
+
+/**
+ * This class answers expected-return queries with total-dependent
+ * odds: a hand is only described by its hard total, whether it
+ * holds an ace, whether it has two cards (and is a pair) and the
+ * dealer upcard. Every card is drawn from the same shoe, the full
+ * shoe minus the withdrawn cards and the upcard, so 9+7 and 2+4+10
+ * share their odds. All the odds are computed upon creation into
+ * tables of a few hundred floats per upcard, and queries are table
+ * lookups, so the class may be used from many threads at once.
+ *
+ * The player draws are conditioned on the dealer not having a
+ * blackjack, as BlackjackOddsComputer does; the dealer hole card is
+ * drawn given that, and the dealer draws that follow are not.
+ * measureDeviation compares these odds with a table of
+ * composition-dependent ones.
+ *
+ * @author marioga
+ *
+ */
+
+import java.util.Arrays;
+
+public final class TotalDependentEngine implements OddsEvaluator {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int MAX_HARD_SUM = 21;
+    // The dealer hits up to 16 (or a soft 17), so hard sums reach 26
+    private static final int MAX_DEALER_HARD_SUM = 26;
+
+    private final BlackjackTableRules mRules;
+    private final int[] mWithdrawnCards;
+    private final DealerOutcomeEngine mPayoffs;
+
+    // Odds by upcard, then by player value or hard sum and ace
+    private final float[][] mStand = new float[SIZE][];
+    private final float[] mBlackjack = new float[SIZE];
+    private final float[][][] mHit = new float[SIZE][][];
+    private final float[][][] mDouble = new float[SIZE][][];
+    // Odds by upcard, then by pair rank
+    private final float[][] mSplit = new float[SIZE][];
+
+    public TotalDependentEngine(BlackjackTableRules rules,
+            int[] withdrawnCards) {
+        mRules = rules;
+        mWithdrawnCards = withdrawnCards.clone();
+        mPayoffs = new DealerOutcomeEngine(rules);
+        for (int upcard = 0; upcard < SIZE; upcard++) {
+            if (rules.getNumDecks() * OCURRENCES[upcard]
+                    > withdrawnCards[upcard]) {
+                computeOdds(upcard);
+            }
+        }
+    }
+
+    @Override
+    public BlackjackTableRules getRules() {
+        return mRules;
+    }
+
+    @Override
+    public int[] getWithdrawnCards() {
+        return mWithdrawnCards.clone();
+    }
+
+    @Override
+    public HandOdds evaluate(int[] playerHand, int dealerUpcard) {
+        if (mStand[dealerUpcard] == null) {
+            throw new IllegalArgumentException(
+                    "Upcard cannot be dealt: " + dealerUpcard);
+        }
+        int numCards = Helper.numberOfCards(playerHand);
+        int hardSum = 0;
+        for (int i = 0; i < SIZE; i++) {
+            hardSum += VALUES[i] * playerHand[i];
+        }
+        if (numCards < 2 || hardSum > MAX_HARD_SUM) {
+            throw new IllegalArgumentException("Hand must have two or more"
+                    + " cards and not be busted: "
+                    + Arrays.toString(playerHand));
+        }
+        int ace = playerHand[0] > 0 ? 1 : 0;
+        int value = value(hardSum, ace);
+        float stand = (numCards == 2 && value == 21)
+                ? mBlackjack[dealerUpcard] : mStand[dealerUpcard][value];
+        float hit = Float.NaN;
+        float doubleDown = Float.NaN;
+        float split = Float.NaN;
+        if (value < 21) {
+            hit = mHit[dealerUpcard][hardSum][ace];
+            if (numCards == 2) {
+                doubleDown = mDouble[dealerUpcard][hardSum][ace];
+                for (int i = 0; i < SIZE; i++) {
+                    if (playerHand[i] == 2) {
+                        split = mSplit[dealerUpcard][i];
+                    }
+                }
+            }
+        }
+        return new HandOdds(stand, hit, doubleDown, split);
+    }
+
+    private void computeOdds(int upcard) {
+        // The fixed shoe
+        float[] counts = new float[SIZE];
+        float total = 0;
+        for (int i = 0; i < SIZE; i++) {
+            counts[i] = mRules.getNumDecks() * OCURRENCES[i]
+                    - mWithdrawnCards[i] - (i == upcard ? 1 : 0);
+            total += counts[i];
+        }
+        int holeCardIsNotThis = -1;
+        if (upcard == 9) {
+            holeCardIsNotThis = 0;
+        } else if (upcard == 0) {
+            holeCardIsNotThis = 9;
+        }
+        float[] drawProbabilities = new float[SIZE];
+        float[] holeProbabilities = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            drawProbabilities[i] = counts[i] / total;
+            holeProbabilities[i] = drawProbabilities[i];
+        }
+        float[] playerProbabilities = drawProbabilities;
+        if (holeCardIsNotThis != -1) {
+            float totalHole = counts[holeCardIsNotThis];
+            playerProbabilities = new float[SIZE];
+            for (int i = 0; i < SIZE; i++) {
+                // P(Next card = i | Hole card is not holeCardIsNotThis)
+                if (i == holeCardIsNotThis) {
+                    playerProbabilities[i] = totalHole / (total - 1);
+                    holeProbabilities[i] = 0;
+                } else {
+                    playerProbabilities[i] = counts[i]
+                            * (total - totalHole - 1) / (total - 1)
+                            / (total - totalHole);
+                    holeProbabilities[i] = counts[i] / (total - totalHole);
+                }
+            }
+        }
+
+        float[] outcomes = dealerOutcomes(upcard, holeProbabilities,
+                drawProbabilities);
+        float[] stand = new float[MAX_HARD_SUM + 1];
+        for (int value = 0; value <= MAX_HARD_SUM; value++) {
+            stand[value] = mPayoffs.expectationStand(value, false, outcomes);
+        }
+        mStand[upcard] = stand;
+        mBlackjack[upcard] = mPayoffs.expectationStand(21, true, outcomes);
+
+        // Hands only grow, so higher hard sums are filled in first
+        float[][] hit = new float[MAX_HARD_SUM + 1][2];
+        float[][] doubleDown = new float[MAX_HARD_SUM + 1][2];
+        for (int hardSum = MAX_HARD_SUM; hardSum >= 2; hardSum--) {
+            for (int ace = 0; ace < 2; ace++) {
+                float hitExp = 0;
+                float doubleExp = 0;
+                for (int i = 0; i < SIZE; i++) {
+                    float probability = playerProbabilities[i];
+                    int newHardSum = hardSum + VALUES[i];
+                    if (newHardSum > MAX_HARD_SUM) {
+                        hitExp -= probability;
+                        doubleExp -= 2 * probability;
+                        continue;
+                    }
+                    int newAce = (i == 0) ? 1 : ace;
+                    int newValue = value(newHardSum, newAce);
+                    float newHit = hit[newHardSum][newAce];
+                    hitExp += probability * (newValue <= 11 ? newHit
+                            : Math.max(newHit, stand[newValue]));
+                    doubleExp += 2 * probability * stand[newValue];
+                }
+                hit[hardSum][ace] = hitExp;
+                doubleDown[hardSum][ace] = doubleExp;
+            }
+        }
+        mHit[upcard] = hit;
+        mDouble[upcard] = doubleDown;
+
+        float[] split = new float[SIZE];
+        for (int pair = 0; pair < SIZE; pair++) {
+            split[pair] = splitOdds(pair, playerProbabilities, stand, hit,
+                    doubleDown);
+        }
+        mSplit[upcard] = split;
+    }
+
+    /*
+     * Same recursion as BlackjackOddsComputer.expectationSplit,
+     * with every card drawn from the fixed shoe
+     */
+    private float splitOdds(int pair, float[] probabilities, float[] stand,
+            float[][] hit, float[][] doubleDown) {
+        boolean splitAces = pair == 0;
+        float[] normalPlay = new float[SIZE];
+        for (int i = 0; i < SIZE; i++) {
+            int hardSum = VALUES[pair] + VALUES[i];
+            int ace = (splitAces || i == 0) ? 1 : 0;
+            // A + 10 after a split is a plain 21
+            normalPlay[i] = stand[value(hardSum, ace)];
+            if (!splitAces) {
+                normalPlay[i] = Math.max(normalPlay[i], hit[hardSum][ace]);
+                if (mRules.isDoubleAfterSplit()) {
+                    normalPlay[i] = Math.max(normalPlay[i],
+                            doubleDown[hardSum][ace]);
+                }
+            }
+        }
+        int splitsLeft = (splitAces && !mRules.isAceReSplits())
+                ? 0 : mRules.getMaxSplitHands() - 2;
+        float[] splitValues = new float[splitsLeft + 1];
+        for (int k = 0; k <= splitsLeft; k++) {
+            float expReturn = 0;
+            for (int i = 0; i < SIZE; i++) {
+                for (int j = 0; j < SIZE; j++) {
+                    float exp = normalPlay[i] + normalPlay[j];
+                    if (k > 0 && (i == pair || j == pair)) {
+                        int other = (i == pair) ? j : i;
+                        exp = Math.max(exp,
+                                splitValues[k - 1] + normalPlay[other]);
+                        if (i == pair && j == pair) {
+                            for (int a = 0; a <= k - 2; a++) {
+                                exp = Math.max(exp, splitValues[a]
+                                        + splitValues[k - 2 - a]);
+                            }
+                        }
+                    }
+                    expReturn += probabilities[i] * probabilities[j] * exp;
+                }
+            }
+            splitValues[k] = expReturn;
+        }
+        return splitValues[splitsLeft];
+    }
+
+    private float[] dealerOutcomes(int upcard, float[] holeProbabilities,
+            float[] drawProbabilities) {
+        float[][][] states =
+                new float[MAX_DEALER_HARD_SUM + 1][2][];
+        float[] outcomes = new float[DealerOutcomeEngine.NUM_OUTCOMES];
+        for (int i = 0; i < SIZE; i++) {
+            if (holeProbabilities[i] == 0) {
+                continue;
+            }
+            int hardSum = VALUES[upcard] + VALUES[i];
+            int ace = (upcard == 0 || i == 0) ? 1 : 0;
+            if (value(hardSum, ace) == 21) {
+                outcomes[DealerOutcomeEngine.OUTCOME_BLACKJACK] +=
+                        holeProbabilities[i];
+                continue;
+            }
+            float[] next = dealerOutcomes(hardSum, ace, drawProbabilities,
+                    states);
+            for (int j = 0; j < outcomes.length; j++) {
+                outcomes[j] += holeProbabilities[i] * next[j];
+            }
+        }
+        return outcomes;
+    }
+
+    private float[] dealerOutcomes(int hardSum, int ace,
+            float[] drawProbabilities, float[][][] states) {
+        if (states[hardSum][ace] != null) {
+            return states[hardSum][ace];
+        }
+        float[] outcomes = new float[DealerOutcomeEngine.NUM_OUTCOMES];
+        int value = value(hardSum, ace);
+        boolean soft = value != hardSum;
+        if (value <= 16 || (value == 17 && soft
+                && !mRules.isDealerStandsSoft17())) {
+            // Dealer hits
+            for (int i = 0; i < SIZE; i++) {
+                int newHardSum = hardSum + VALUES[i];
+                if (newHardSum > MAX_HARD_SUM) {
+                    outcomes[DealerOutcomeEngine.OUTCOME_BUST] +=
+                            drawProbabilities[i];
+                    continue;
+                }
+                float[] next = dealerOutcomes(newHardSum,
+                        (i == 0) ? 1 : ace, drawProbabilities, states);
+                for (int j = 0; j < outcomes.length; j++) {
+                    outcomes[j] += drawProbabilities[i] * next[j];
+                }
+            }
+        } else {
+            outcomes[DealerOutcomeEngine.OUTCOME_17 + value - 17] = 1;
+        }
+        states[hardSum][ace] = outcomes;
+        return outcomes;
+    }
+
+    private static int value(int hardSum, int ace) {
+        if (hardSum <= 11 && ace == 1) {
+            return hardSum + 10;
+        }
+        return hardSum;
+    }
+
+    /**
+     * This method compares the odds of this engine with the
+     * composition-dependent odds of every cell of a table built
+     * for the same rules and withdrawn cards.
+     * @param compositionDependent table to compare with
+     * @return the largest deviation of each action and the number
+     * of cells whose best action differs
+     */
+
+    public Deviation measureDeviation(StrategyTable compositionDependent) {
+        if (!mRules.equals(compositionDependent.getRules())
+                || !Arrays.equals(mWithdrawnCards,
+                        compositionDependent.getWithdrawnCards())) {
+            throw new IllegalArgumentException(
+                    "Table was built for other rules or withdrawn cards");
+        }
+        HandIndexer indexer = compositionDependent.getIndexer();
+        Deviation deviation = new Deviation(indexer);
+        for (int cell = 0; cell < indexer.getNumCells(); cell++) {
+            HandOdds exact = compositionDependent.getOdds(cell);
+            if (Float.isNaN(exact.getStand())) {
+                // Cell cannot occur
+                continue;
+            }
+            HandOdds approximate = evaluate(indexer.getPlayerHand(cell),
+                    HandIndexer.getDealerCard(cell));
+            deviation.add(cell, exact, approximate,
+                    compositionDependent.getBestAction(cell));
+        }
+        return deviation;
+    }
+
+    /**
+     * This class reports how far total-dependent odds are
+     * from composition-dependent ones.
+     */
+    public static final class Deviation {
+        private static final int NUM_ACTIONS = 4;
+
+        private final HandIndexer mIndexer;
+        private final float[] mMaxDeviation = new float[NUM_ACTIONS];
+        private final int[] mWorstCell = new int[NUM_ACTIONS];
+        private int mNumCells;
+        private int mActionDisagreements;
+
+        private Deviation(HandIndexer indexer) {
+            mIndexer = indexer;
+            Arrays.fill(mWorstCell, -1);
+        }
+
+        private void add(int cell, HandOdds exact, HandOdds approximate,
+                int exactBestAction) {
+            float[] exactOdds = { exact.getStand(), exact.getHit(),
+                    exact.getDouble(), exact.getSplit() };
+            float[] approximateOdds = { approximate.getStand(),
+                    approximate.getHit(), approximate.getDouble(),
+                    approximate.getSplit() };
+            for (int action = 0; action < NUM_ACTIONS; action++) {
+                // NaN differences (unavailable actions) never compare
+                float difference = Math.abs(exactOdds[action]
+                        - approximateOdds[action]);
+                if (difference > mMaxDeviation[action]) {
+                    mMaxDeviation[action] = difference;
+                    mWorstCell[action] = cell;
+                }
+            }
+            mNumCells++;
+            if (StrategyTable.getBestAction(approximateOdds[0],
+                    approximateOdds[1], approximateOdds[2],
+                    approximateOdds[3]) != exactBestAction) {
+                mActionDisagreements++;
+            }
+        }
+
+        /**
+         * Returns the largest absolute deviation of an action,
+         * given as one of the StrategyTable ACTION constants.
+         */
+
+        public float getMaxDeviation(int action) {
+            return mMaxDeviation[action];
+        }
+
+        /**
+         * Returns the player hand where an action deviates
+         * the most, or null if it never deviates.
+         */
+
+        public int[] getWorstPlayerHand(int action) {
+            return mWorstCell[action] < 0 ? null
+                    : mIndexer.getPlayerHand(mWorstCell[action]);
+        }
+
+        public int getWorstDealerCard(int action) {
+            return mWorstCell[action] < 0 ? -1
+                    : HandIndexer.getDealerCard(mWorstCell[action]);
+        }
+
+        public int getNumCells() {
+            return mNumCells;
+        }
+
+        public int getActionDisagreements() {
+            return mActionDisagreements;
+        }
+
+        @Override
+        public String toString() {
+            String[] names = { "stand", "hit", "double", "split" };
+            StringBuilder sb = new StringBuilder("Deviation[cells=")
+                    .append(mNumCells).append(", disagreements=")
+                    .append(mActionDisagreements);
+            for (int action = 0; action < NUM_ACTIONS; action++) {
+                sb.append(", ").append(names[action]).append('=')
+                        .append(mMaxDeviation[action]);
+                if (mWorstCell[action] >= 0) {
+                    sb.append(" at ")
+                            .append(Arrays.toString(
+                                    getWorstPlayerHand(action)))
+                            .append(" vs ")
+                            .append(getWorstDealerCard(action));
+                }
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BlackjackOddsComputerTest {
+    private static final int SIZE = 10;
+    private static final BlackjackTableRules RULES =
+            new BlackjackTableRules(1, true, true, true, 1.5f);
+    /*
+     * Pair rank, dealer card and the split expectations with 0, 1
+     * and 2 splits left, as computed by the hand-written branches
+     * for up to two splits that the general recursion replaced
+     * (one deck, full shoe, resplitting aces allowed)
+     */
+    private static final float[][] OLD_SPLIT_VALUES = {
+        { 0, 0, 0.27557588f, 0.31350386f, 0.3150363f },
+        { 0, 5, 0.8085326f, 0.88220906f, 0.8888737f },
+        { 0, 9, 0.21881248f, 0.28060526f, 0.28630954f },
+        { 1, 0, -0.42187777f, -0.42187777f, -0.42187777f },
+        { 1, 5, 0.24075113f, 0.25761008f, 0.25913513f },
+        { 1, 9, -0.44544336f, -0.44544336f, -0.44544336f },
+        { 7, 0, -0.36286452f, -0.35230452f, -0.3513588f },
+        { 7, 5, 0.3562952f, 0.3994706f, 0.4033762f },
+        { 7, 9, -0.44672588f, -0.44148228f, -0.4410088f },
+        { 8, 0, -0.11328068f, -0.11328068f, -0.11328068f },
+        { 8, 5, 0.43692657f, 0.45079938f, 0.45205435f },
+        { 8, 9, -0.26483256f, -0.26483256f, -0.26483256f },
+        { 9, 0, 0.1670855f, 0.1670855f, 0.1670855f },
+        { 9, 5, 0.6401332f, 0.6401332f, 0.6401332f },
+        { 9, 9, 0.12561294f, 0.12561294f, 0.12561294f }
+    };
+
+    @Test
+    void resplitsLikeTheOldBranches() {
+        for (float[] row : OLD_SPLIT_VALUES) {
+            int pair = (int) row[0];
+            int dealerCard = (int) row[1];
+            for (int splitsLeft = 0; splitsLeft <= 2; splitsLeft++) {
+                // A new computer each time, so nothing is memoized
+                float split = computer(pair, dealerCard)
+                        .computeExpectationSplit(false, splitsLeft);
+                assertEquals(row[2 + splitsLeft], split,
+                        "pair " + pair + " against " + dealerCard
+                                + " with " + splitsLeft + " splits left");
+            }
+        }
+    }
+
+    @Test
+    void moreSplitsNeverLowerTheExpectation() {
+        for (float[] row : OLD_SPLIT_VALUES) {
+            BlackjackOddsComputer boc = computer((int) row[0],
+                    (int) row[1]);
+            float previous = boc.computeExpectationSplit(false, 0);
+            for (int splitsLeft = 1; splitsLeft <= 6; splitsLeft++) {
+                float split = boc.computeExpectationSplit(false, splitsLeft);
+                assertTrue(split >= previous - 1e-6f, "pair " + row[0]
+                        + " against " + row[1] + " with " + splitsLeft
+                        + " splits left");
+                previous = split;
+            }
+        }
+    }
+
+    @Test
+    void memoizedSplitsDoNotDependOnTheOrderOfQueries() {
+        BlackjackOddsComputer ascending = computer(7, 5);
+        BlackjackOddsComputer descending = computer(7, 5);
+        float[] values = new float[5];
+        for (int splitsLeft = 0; splitsLeft < values.length; splitsLeft++) {
+            values[splitsLeft] = ascending.computeExpectationSplit(false,
+                    splitsLeft);
+        }
+        for (int splitsLeft = values.length - 1; splitsLeft >= 0;
+                splitsLeft--) {
+            assertEquals(values[splitsLeft], descending
+                    .computeExpectationSplit(false, splitsLeft));
+        }
+    }
+
+    private static BlackjackOddsComputer computer(int pair, int dealerCard) {
+        int[] playerHand = new int[SIZE];
+        playerHand[pair] = 2;
+        int[] dealerHand = new int[SIZE];
+        dealerHand[dealerCard] = 1;
+        return new BlackjackOddsComputer(RULES, playerHand, dealerHand,
+                new int[SIZE]);
+    }
+}
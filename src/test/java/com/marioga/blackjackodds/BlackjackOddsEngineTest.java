@@ -0,0 +1,76 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class BlackjackOddsEngineTest {
+    private static final int[] UPCARDS = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+    private static final BlackjackTableRules RULES =
+            new BlackjackTableRules(1, true, true, false, 1.5f);
+
+    @Test
+    void batchesMatchSingleQueriesBitForBit() {
+        checkBatches(new int[10]);
+    }
+
+    @Test
+    void batchesMatchSingleQueriesOnADepletedShoe() {
+        checkBatches(new int[] { 3, 0, 1, 0, 2, 0, 0, 1, 0, 6 });
+    }
+
+    private static void checkBatches(int[] withdrawnCards) {
+        StandExpectationCache cache = StandExpectationCache.createLazy(
+                RULES, withdrawnCards, false);
+        List<int[]> playerHands = PlayerHandGenerator.stream(
+                RULES.getNumDecks(), withdrawnCards)
+                .collect(Collectors.toList());
+        // Separate engines, so no query reuses another's results
+        BlackjackOddsEngine single = new BlackjackOddsEngine(RULES,
+                withdrawnCards, cache);
+        HandOdds[][] matrix = new BlackjackOddsEngine(RULES,
+                withdrawnCards, cache).evaluateBatch(playerHands, UPCARDS);
+        List<int[]> half = playerHands.subList(playerHands.size() / 2,
+                playerHands.size());
+        BlackjackOddsEngine halves = new BlackjackOddsEngine(RULES,
+                withdrawnCards, cache);
+        for (int upcard : UPCARDS) {
+            HandOdds[] secondHalf = halves.evaluateBatch(half, upcard);
+            for (int k = 0; k < playerHands.size(); k++) {
+                int[] playerHand = playerHands.get(k);
+                String cell = Arrays.toString(playerHand) + " against "
+                        + upcard;
+                if (!Helper.fitsInShoe(RULES.getNumDecks(), withdrawnCards,
+                        playerHand, upcard)) {
+                    assertNull(matrix[upcard][k], cell);
+                    continue;
+                }
+                HandOdds expected = single.evaluate(playerHand, upcard);
+                assertNotNull(matrix[upcard][k], cell);
+                assertSameOdds(expected, matrix[upcard][k], cell);
+                int h = k - (playerHands.size() - half.size());
+                if (h >= 0) {
+                    assertSameOdds(expected, secondHalf[h], cell);
+                }
+            }
+        }
+    }
+
+    private static void assertSameOdds(HandOdds expected, HandOdds actual,
+            String cell) {
+        assertEquals(Float.floatToIntBits(expected.getStand()),
+                Float.floatToIntBits(actual.getStand()), cell);
+        assertEquals(Float.floatToIntBits(expected.getHit()),
+                Float.floatToIntBits(actual.getHit()), cell);
+        assertEquals(Float.floatToIntBits(expected.getDouble()),
+                Float.floatToIntBits(actual.getDouble()), cell);
+        assertEquals(Float.floatToIntBits(expected.getSplit()),
+                Float.floatToIntBits(actual.getSplit()), cell);
+    }
+}
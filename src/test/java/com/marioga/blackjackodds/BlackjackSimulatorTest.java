@@ -0,0 +1,109 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class BlackjackSimulatorTest {
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int DECK_SIZE = 52;
+    private static final BlackjackTableRules RULES =
+            new BlackjackTableRules(1, true, true, false, 1.5f,
+                    BlackjackTableRules.DEFAULT_MAX_SPLIT_HANDS, true);
+    // Reshuffles after every round, so every round starts from
+    // the full deck, as the exact expected return assumes
+    private static final double PENETRATION = 1.0 / DECK_SIZE;
+
+    @Test
+    void simulatedReturnCoversTheExactReturn() {
+        StrategyTable strategy = strategy();
+        double exact = exactExpectedReturn(strategy);
+        BlackjackSimulator.Result result = new BlackjackSimulator(strategy,
+                PENETRATION, 2).run(4000000, 42);
+        assertTrue(result.getLowerBound() <= exact
+                && exact <= result.getUpperBound(), "exact " + exact
+                        + " outside of " + result);
+    }
+
+    @Test
+    void runsOnlyDependOnTheSeedAndParallelism() {
+        BlackjackSimulator simulator = new BlackjackSimulator(strategy(),
+                PENETRATION, 3);
+        BlackjackSimulator.Result first = simulator.run(100000, 7);
+        BlackjackSimulator.Result second = simulator.run(100000, 7);
+        assertEquals(first.getRounds(), second.getRounds());
+        assertEquals(first.getExpectedValue(), second.getExpectedValue(), 0);
+    }
+
+    private static StrategyTable strategy() {
+        int[] withdrawnCards = new int[SIZE];
+        return new StrategyTableGenerator(RULES, withdrawnCards,
+                StandExpectationCache.createLazy(RULES, withdrawnCards,
+                        false), 1).generate();
+    }
+
+    /*
+     * Expected return of a round from the full deck when the best
+     * action of the table is played on the first two cards: the
+     * dealer peeks under an Ace or a 10, and the table's returns
+     * hold once the dealer has no blackjack
+     */
+    private static double exactExpectedReturn(StrategyTable strategy) {
+        int[] shoe = OCURRENCES.clone();
+        double expReturn = 0;
+        // The cards are dealt player, upcard, player, hole card
+        for (int card1 = 0; card1 < SIZE; card1++) {
+            double probability1 = (double) shoe[card1] / DECK_SIZE;
+            shoe[card1]--;
+            for (int upcard = 0; upcard < SIZE; upcard++) {
+                double probabilityUp = (double) shoe[upcard]
+                        / (DECK_SIZE - 1);
+                shoe[upcard]--;
+                for (int card2 = 0; card2 < SIZE; card2++) {
+                    if (shoe[card2] == 0) {
+                        continue;
+                    }
+                    double probability = probability1 * probabilityUp
+                            * shoe[card2] / (DECK_SIZE - 2);
+                    shoe[card2]--;
+                    expReturn += probability * roundReturn(strategy,
+                            card1, card2, upcard, shoe);
+                    shoe[card2]++;
+                }
+                shoe[upcard]++;
+            }
+            shoe[card1]++;
+        }
+        return expReturn;
+    }
+
+    private static double roundReturn(StrategyTable strategy, int card1,
+            int card2, int upcard, int[] shoe) {
+        boolean playerBlackjack = (card1 == 0 && card2 == 9)
+                || (card1 == 9 && card2 == 0);
+        double dealerBlackjack = 0;
+        if (upcard == 0 || upcard == 9) {
+            dealerBlackjack = (double) shoe[upcard == 0 ? 9 : 0]
+                    / (DECK_SIZE - 3);
+        }
+        if (playerBlackjack) {
+            return (1 - dealerBlackjack) * RULES.getBlackjackPays();
+        }
+        int[] playerHand = new int[SIZE];
+        playerHand[card1]++;
+        playerHand[card2]++;
+        HandOdds odds = strategy.getOdds(playerHand, upcard);
+        double best = odds.getStand();
+        for (float action : new float[] { odds.getHit(), odds.getDouble(),
+                odds.getSplit() }) {
+            if (action > best) {
+                // NaN actions are never greater
+                best = action;
+            }
+        }
+        return (1 - dealerBlackjack) * best - dealerBlackjack;
+    }
+}
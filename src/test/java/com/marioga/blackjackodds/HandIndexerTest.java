@@ -0,0 +1,75 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.function.Consumer;
+
+import org.junit.jupiter.api.Test;
+
+class HandIndexerTest {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int[] DECKS = { 1, 2, 6, 8 };
+
+    @Test
+    void cellIndexRoundTrips() {
+        for (int numDecks : DECKS) {
+            HandIndexer indexer = new HandIndexer(numDecks);
+            for (int cell = 0; cell < indexer.getNumCells(); cell++) {
+                int[] playerHand = indexer.getPlayerHand(cell);
+                int dealerCard = HandIndexer.getDealerCard(cell);
+                assertEquals(cell, indexer.getIndex(playerHand, dealerCard),
+                        numDecks + " decks");
+                assertEquals(cell, HandIndexer.getCellIndex(
+                        indexer.getIndex(playerHand), dealerCard));
+            }
+        }
+    }
+
+    @Test
+    void handsAreRankedInLexicographicOrder() {
+        for (int numDecks : DECKS) {
+            HandIndexer indexer = new HandIndexer(numDecks);
+            int[] numHands = new int[1];
+            enumerate(numDecks, new int[SIZE], 0, 21, hand -> {
+                assertEquals(numHands[0], indexer.getIndex(hand),
+                        numDecks + " decks");
+                assertArrayEquals(hand, indexer.getHand(numHands[0]));
+                numHands[0]++;
+            });
+            assertEquals(numHands[0], indexer.getNumHands());
+            assertEquals(SIZE * numHands[0], indexer.getNumCells());
+        }
+    }
+
+    @Test
+    void countsTheCells() {
+        assertEquals(20190, new HandIndexer(1).getNumCells());
+        assertEquals(28070, new HandIndexer(2).getNumCells());
+        // From six decks on, no rank runs out within 21 points
+        assertEquals(30830, new HandIndexer(6).getNumCells());
+        assertEquals(30830, new HandIndexer(8).getNumCells());
+    }
+
+    /*
+     * Visits every hand within a hard value that the shoe can
+     * deal, in lexicographic order of the counts, aces first
+     */
+    private static void enumerate(int numDecks, int[] hand, int rank,
+            int sumLeft, Consumer<int[]> visitor) {
+        if (rank == SIZE) {
+            visitor.accept(hand.clone());
+            return;
+        }
+        for (int count = 0; count <= numDecks * OCURRENCES[rank]
+                && count * VALUES[rank] <= sumLeft; count++) {
+            hand[rank] = count;
+            enumerate(numDecks, hand, rank + 1,
+                    sumLeft - count * VALUES[rank], visitor);
+        }
+        hand[rank] = 0;
+    }
+}
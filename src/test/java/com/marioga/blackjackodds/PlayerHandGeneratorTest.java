@@ -0,0 +1,116 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+class PlayerHandGeneratorTest {
+    private static final int[] VALUES = { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 };
+    private static final int[] OCURRENCES =
+        { 4, 4, 4, 4, 4, 4, 4, 4, 4, 16 };
+    private static final int SIZE = 10;
+    private static final int[][] SHOES = {
+        // Number of decks followed by the withdrawn cards
+        { 1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 },
+        { 1, 4, 0, 1, 0, 3, 0, 0, 2, 0, 9 },
+        { 2, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 },
+        { 6, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10 },
+        { 8, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 }
+    };
+
+    @Test
+    void enumeratesTheReferenceHandsInOrder() {
+        for (int[] shoe : SHOES) {
+            int numDecks = shoe[0];
+            int[] withdrawnCards = Arrays.copyOfRange(shoe, 1, SIZE + 1);
+            List<String> hands = new ArrayList<>();
+            for (int[] hand : PlayerHandGenerator.getHands(numDecks,
+                    withdrawnCards)) {
+                hands.add(Arrays.toString(hand));
+            }
+            assertEquals(referenceHands(numDecks, withdrawnCards), hands,
+                    Arrays.toString(shoe));
+        }
+    }
+
+    @Test
+    void splitsIntoTheSameHands() {
+        for (int[] shoe : SHOES) {
+            int numDecks = shoe[0];
+            int[] withdrawnCards = Arrays.copyOfRange(shoe, 1, SIZE + 1);
+            List<String> expected = referenceHands(numDecks, withdrawnCards);
+            Collections.sort(expected);
+
+            List<String> hands = new ArrayList<>();
+            splitAndCollect(PlayerHandGenerator.spliterator(numDecks,
+                    withdrawnCards, false), hands);
+            Collections.sort(hands);
+            assertEquals(expected, hands, Arrays.toString(shoe));
+
+            List<String> parallel = PlayerHandGenerator
+                    .stream(numDecks, withdrawnCards).parallel()
+                    .map(Arrays::toString).sorted()
+                    .collect(Collectors.toList());
+            assertEquals(expected, parallel, Arrays.toString(shoe));
+        }
+    }
+
+    @Test
+    void reusedBufferHoldsEveryHand() {
+        int[] withdrawnCards = new int[SIZE];
+        List<String> hands = PlayerHandGenerator
+                .stream(2, withdrawnCards, true)
+                .map(Arrays::toString).collect(Collectors.toList());
+        assertEquals(referenceHands(2, withdrawnCards), hands);
+    }
+
+    /*
+     * Splits as deep as possible, collecting every part
+     */
+    private static void splitAndCollect(Spliterator<int[]> spliterator,
+            List<String> hands) {
+        Spliterator<int[]> prefix = spliterator.trySplit();
+        if (prefix != null) {
+            splitAndCollect(prefix, hands);
+            splitAndCollect(spliterator, hands);
+        } else {
+            spliterator.forEachRemaining(
+                    hand -> hands.add(Arrays.toString(hand)));
+        }
+    }
+
+    /*
+     * Every hand of two or more cards and a hard value of at most
+     * 21, depth first, adding cards in non-decreasing rank order
+     */
+    private static List<String> referenceHands(int numDecks,
+            int[] withdrawnCards) {
+        List<String> hands = new ArrayList<>();
+        addHands(numDecks, withdrawnCards, new int[SIZE], 0, 0, 0, hands);
+        return hands;
+    }
+
+    private static void addHands(int numDecks, int[] withdrawnCards,
+            int[] hand, int numCards, int hardSum, int lowestRank,
+            List<String> hands) {
+        if (numCards >= 2) {
+            hands.add(Arrays.toString(hand));
+        }
+        for (int i = lowestRank; i < SIZE; i++) {
+            if (hardSum + VALUES[i] <= 21 && hand[i] + withdrawnCards[i]
+                    < numDecks * OCURRENCES[i]) {
+                hand[i]++;
+                addHands(numDecks, withdrawnCards, hand, numCards + 1,
+                        hardSum + VALUES[i], i, hands);
+                hand[i]--;
+            }
+        }
+    }
+}
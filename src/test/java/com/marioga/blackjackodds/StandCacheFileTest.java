@@ -0,0 +1,86 @@
+package com.marioga.blackjackodds;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class StandCacheFileTest {
+    private static final BlackjackTableRules RULES =
+            new BlackjackTableRules(2, true, true, false, 1.5f);
+    private static final int[] WITHDRAWN_CARDS =
+        { 1, 0, 2, 0, 0, 3, 0, 0, 1, 4 };
+
+    @TempDir
+    File mTempDir;
+
+    @Test
+    void valuesRoundTrip() throws IOException {
+        File file = new File(mTempDir, "stand.bin");
+        float[] standValues = randomValues();
+        StandCacheFile.write(file, RULES, WITHDRAWN_CARDS, standValues);
+        StandCacheFile cache = StandCacheFile.open(file, RULES,
+                WITHDRAWN_CARDS);
+        assertNotNull(cache);
+        assertEquals(standValues.length, cache.size());
+        for (int cell = 0; cell < standValues.length; cell++) {
+            // Compares the bits, so NaN cells must stay NaN
+            assertEquals(Float.floatToRawIntBits(standValues[cell]),
+                    Float.floatToRawIntBits(cache.getValue(cell)));
+        }
+    }
+
+    @Test
+    void opensForRulesWithTheSameStandValues() throws IOException {
+        File file = new File(mTempDir, "stand.bin");
+        StandCacheFile.write(file, RULES, WITHDRAWN_CARDS, randomValues());
+        BlackjackTableRules noDoubleAfterSplit =
+                new BlackjackTableRules(2, true, false, true, 1.5f, 2);
+        assertNotNull(StandCacheFile.open(file, noDoubleAfterSplit,
+                WITHDRAWN_CARDS));
+    }
+
+    @Test
+    void rejectsOtherRulesOrWithdrawnCards() throws IOException {
+        File file = new File(mTempDir, "stand.bin");
+        StandCacheFile.write(file, RULES, WITHDRAWN_CARDS, randomValues());
+        assertNull(StandCacheFile.open(file,
+                new BlackjackTableRules(2, false, true, false, 1.5f),
+                WITHDRAWN_CARDS));
+        assertNull(StandCacheFile.open(file,
+                new BlackjackTableRules(2, true, true, false, 1.2f),
+                WITHDRAWN_CARDS));
+        int[] otherCards = WITHDRAWN_CARDS.clone();
+        otherCards[9]++;
+        assertNull(StandCacheFile.open(file, RULES, otherCards));
+    }
+
+    @Test
+    void rejectsTruncatedAndMissingFiles() throws IOException {
+        File file = new File(mTempDir, "stand.bin");
+        assertNull(StandCacheFile.open(file, RULES, WITHDRAWN_CARDS));
+        StandCacheFile.write(file, RULES, WITHDRAWN_CARDS, randomValues());
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 4);
+        }
+        assertNull(StandCacheFile.open(file, RULES, WITHDRAWN_CARDS));
+    }
+
+    private static float[] randomValues() {
+        float[] standValues = new float[new HandIndexer(
+                RULES.getNumDecks()).getNumCells()];
+        Random random = new Random(42);
+        for (int cell = 0; cell < standValues.length; cell++) {
+            standValues[cell] = cell % 7 == 0 ? Float.NaN
+                    : 2 * random.nextFloat() - 1;
+        }
+        return standValues;
+    }
+}